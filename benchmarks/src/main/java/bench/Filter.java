@@ -0,0 +1,171 @@
+package bench;
+
+import java.awt.Color;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import lejos.robotics.navigation.Move;
+import lejos.robotics.navigation.Pose;
+
+/**
+ * Access to the filter classes for the benchmarks.
+ *
+ * The monitor classes are in the default package, which cannot be imported,
+ * and JMH does not accept benchmarks in the default package. The benchmarks
+ * therefore call the filter through constant method handles typed on Object,
+ * which the JIT inlines like direct calls.
+ */
+final class Filter
+{
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+  static final Class<?> MAP = load("Map");
+  static final Class<?> PARTICLE_SET = load("ParticleSet");
+
+  private static final MethodHandle NEW_MAP = constructor(MAP,
+      MethodType.methodType(void.class, int.class, int.class, int.class));
+  private static final MethodHandle SET_COLOR = method(MAP, "setColor",
+      MethodType.methodType(void.class, int.class, int.class, Color.class));
+  private static final MethodHandle GET_COLOR = method(MAP, "getColor",
+      MethodType.methodType(Color.class, Pose.class));
+  private static final MethodHandle NEW_PARTICLE_SET = constructor(PARTICLE_SET,
+      MethodType.methodType(void.class, int.class, MAP, long.class));
+  private static final MethodHandle APPLY_MOVE = method(PARTICLE_SET, "applyMove",
+      MethodType.methodType(void.class, Move.class));
+  private static final MethodHandle CALCULATE_WEIGHTS = method(PARTICLE_SET, "calculateWeights",
+      MethodType.methodType(void.class, int.class, MAP));
+  private static final MethodHandle RESAMPLE = method(PARTICLE_SET, "resample",
+      MethodType.methodType(boolean.class));
+  private static final MethodHandle ESTIMATE_POSE = method(PARTICLE_SET, "estimatePose",
+      MethodType.methodType(void.class));
+
+  private Filter()
+  {
+  }
+
+  /**
+   * Create a square map of size x size tiles with a random fraction of
+   * black tiles
+   */
+  static Object newMap(int size, int width, double black, long seed)
+  {
+    try {
+      Object map = (Object) NEW_MAP.invokeExact(size, size, width);
+      java.util.Random rand = new java.util.Random(seed);
+      for (int i = 0; i < size; i++)
+        for (int j = 0; j < size; j++)
+          if (rand.nextDouble() < black) SET_COLOR.invokeExact(map, i, j, Color.BLACK);
+      return map;
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Object newParticleSet(int particles, Object map, long seed)
+  {
+    try {
+      return (Object) NEW_PARTICLE_SET.invokeExact(particles, map, seed);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static Color getColor(Object map, Pose p)
+  {
+    try {
+      return (Color) GET_COLOR.invokeExact(map, p);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void applyMove(Object set, Move move)
+  {
+    try {
+      APPLY_MOVE.invokeExact(set, move);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void calculateWeights(Object set, int lightValue, Object map)
+  {
+    try {
+      CALCULATE_WEIGHTS.invokeExact(set, lightValue, map);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static boolean resample(Object set)
+  {
+    try {
+      return (boolean) RESAMPLE.invokeExact(set);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  static void estimatePose(Object set)
+  {
+    try {
+      ESTIMATE_POSE.invokeExact(set);
+    } catch (Throwable t) {
+      throw rethrow(t);
+    }
+  }
+
+  private static Class<?> load(String name)
+  {
+    try {
+      return Class.forName(name);
+    } catch (ClassNotFoundException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * Find a constructor, typed to return Object
+   */
+  private static MethodHandle constructor(Class<?> c, MethodType type)
+  {
+    try {
+      MethodHandle h = LOOKUP.findConstructor(c, type);
+      return h.asType(h.type().erase());
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * Find a method, typed to take the receiver and arguments of
+   * monitor classes as Object
+   */
+  private static MethodHandle method(Class<?> c, String name, MethodType type)
+  {
+    try {
+      MethodHandle h = LOOKUP.findVirtual(c, name, type);
+      return h.asType(eraseMonitorTypes(h.type()));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private static MethodType eraseMonitorTypes(MethodType type)
+  {
+    for (int i = 0; i < type.parameterCount(); i++)
+    {
+      Class<?> p = type.parameterType(i);
+      if (p == MAP || p == PARTICLE_SET) type = type.changeParameterType(i, Object.class);
+    }
+    return type;
+  }
+
+  private static RuntimeException rethrow(Throwable t)
+  {
+    if (t instanceof RuntimeException) return (RuntimeException) t;
+    if (t instanceof Error) throw (Error) t;
+    return new RuntimeException(t);
+  }
+}
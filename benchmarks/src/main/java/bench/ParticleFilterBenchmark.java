@@ -0,0 +1,121 @@
+package bench;
+
+import java.awt.Color;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import lejos.robotics.navigation.Move;
+import lejos.robotics.navigation.Pose;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The hot paths of the particle filter: one motion update, one sensor
+ * update, one resampling and one pose estimate of the whole set, and
+ * tile lookups through Map.getColor(Pose).
+ *
+ * Run with -prof gc to see the allocation per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticleFilterBenchmark
+{
+  private static final int TILE_WIDTH = 50;
+  private static final int POSES = 1024;
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int particles;
+
+  /** The map is mapSize x mapSize tiles */
+  @Param({"12", "1000"})
+  public int mapSize;
+
+  private Object map;
+  private Object set;
+  private Move move;
+  private Pose[] poses;
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    map = Filter.newMap(mapSize, TILE_WIDTH, 0.3, 1);
+    set = Filter.newParticleSet(particles, map, 1);
+    move = new Move(Move.MoveType.TRAVEL, 9, 0, false);
+
+    Random rand = new Random(2);
+    float range = mapSize * TILE_WIDTH;
+    poses = new Pose[POSES];
+    for (int i = 0; i < POSES; i++)
+      poses[i] = new Pose(rand.nextFloat() * range, rand.nextFloat() * range, 0);
+  }
+
+  /**
+   * Fresh weights for every resampling, alternating dark and light
+   * readings so resampling has different weights to work on every time.
+   * Only the resample benchmark uses this state, so the other benchmarks
+   * do not pay for a setup per invocation.
+   */
+  @State(Scope.Thread)
+  public static class Weighted
+  {
+    private int light;
+
+    @Setup(Level.Invocation)
+    public void weigh(ParticleFilterBenchmark b)
+    {
+      light = (light == 400) ? 600 : 400;
+      Filter.calculateWeights(b.set, light, b.map);
+    }
+  }
+
+  @Benchmark
+  public void applyMove()
+  {
+    Filter.applyMove(set, move);
+  }
+
+  @Benchmark
+  public void calculateWeights()
+  {
+    Filter.calculateWeights(set, 400, map);
+  }
+
+  @Benchmark
+  public boolean resample(Weighted weighted)
+  {
+    return Filter.resample(set);
+  }
+
+  @Benchmark
+  public void estimatePose()
+  {
+    Filter.estimatePose(set);
+  }
+
+  /**
+   * POSES lookups; divide by POSES for the time of one
+   */
+  @Benchmark
+  public int getColor()
+  {
+    int black = 0;
+    for (int i = 0; i < POSES; i++)
+      if (Filter.getColor(map, poses[i]) == Color.BLACK) black++;
+    return black;
+  }
+}
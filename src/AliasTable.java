@@ -0,0 +1,82 @@
+import java.util.Random;
+
+/**
+ * Draws an index in proportion to a set of weights in constant time, with
+ * the alias method of Walker in the form given by Vose. Building the
+ * table takes time linear in the number of weights; after that a draw is
+ * one random number, one table load and one comparison.
+ *
+ * Every entry k of the table is chosen with probability 1/n, and then
+ * gives k with probability prob[k] and alias[k] otherwise. The arrays
+ * are kept between builds, so a table can be built again without
+ * allocating.
+ */
+public class AliasTable
+{
+  private double[] prob = new double[0];
+  private int[] alias = new int[0];
+  private int[] small = new int[0], large = new int[0];
+  private int n;
+
+  /**
+   * Build the table for weights[0] to weights[n-1]
+   *
+   * @return false if the weights sum to 0, when nothing can be drawn
+   */
+  public boolean build(double[] weights, int n)
+  {
+    if (prob.length < n)
+    {
+      prob = new double[n];
+      alias = new int[n];
+      small = new int[n];
+      large = new int[n];
+    }
+    double total = 0;
+    for (int k = 0; k < n; k++) total += weights[k];
+    if (!(total > 0))
+    {
+      this.n = 0;
+      return false;
+    }
+
+    int s = 0, l = 0;
+    for (int k = 0; k < n; k++)
+    {
+      prob[k] = weights[k] * n / total;
+      if (prob[k] < 1) small[s++] = k;
+      else large[l++] = k;
+    }
+    while (s > 0 && l > 0)
+    {
+      int less = small[--s], more = large[--l];
+      alias[less] = more;
+      prob[more] += prob[less] - 1;
+      if (prob[more] < 1) small[s++] = more;
+      else large[l++] = more;
+    }
+    // What is left is 1 up to rounding
+    while (l > 0) prob[large[--l]] = 1;
+    while (s > 0) prob[small[--s]] = 1;
+    this.n = n;
+    return true;
+  }
+
+  /**
+   * Draw an index, in proportion to its weight
+   */
+  public int sample(Random r)
+  {
+    double u = r.nextDouble() * n;
+    int k = Math.min((int) u, n - 1);
+    return (u - k < prob[k]) ? k : alias[k];
+  }
+
+  /**
+   * Return the number of weights, 0 if the table is empty
+   */
+  public int size()
+  {
+    return n;
+  }
+}
@@ -0,0 +1,323 @@
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/**
+ * The Euclidean distance from every position on a map to the nearest
+ * obstacle, for range sensor models (the likelihood field of Thrun,
+ * Burgard and Fox). Obstacles are the tiles of given colors and the border
+ * of the map, which is taken to be a wall.
+ * 
+ * The distances are sampled on a grid of cellsPerTile x cellsPerTile cells
+ * per tile, so looking up the distance at a position is one multiplication
+ * and one buffer load. The grid is computed with the exact distance
+ * transform of Felzenszwalb and Huttenlocher: a pass along the columns and
+ * a pass along the rows, each line independent of the others, so the
+ * lines of a pass are spread over a ForkJoinPool.
+ * 
+ * A field can be written to a file and memory mapped back:
+ * 
+ *   int   magic    'MCLD'
+ *   int   version  1
+ *   int   dimX, dimY, width, cellsPerTile
+ *   long  CRC32 of the obstacle tiles, to tell a stale file
+ *   float the distances, row by row from cell row 0
+ * 
+ * all in big endian byte order. cached keeps the file next to the map file.
+ */
+public class DistanceField
+{
+  public static final int MAGIC = 0x4d434c44; // "MCLD"
+  public static final int VERSION = 1;
+  private static final int HEADER = 32;
+  private static final int GRAIN = 16;  // lines per task
+
+  private int dimX, dimY, width, cellsPerTile, cellsX, cellsY;
+  private float cellSize, invCellSize;
+  private long obstacleCRC;
+  private FloatBuffer distances;
+
+  private DistanceField(int dimX, int dimY, int width, int cellsPerTile, long obstacleCRC)
+  {
+    this.dimX = dimX;
+    this.dimY = dimY;
+    this.width = width;
+    this.cellsPerTile = cellsPerTile;
+    this.obstacleCRC = obstacleCRC;
+    cellsX = dimX * cellsPerTile;
+    cellsY = dimY * cellsPerTile;
+    cellSize = (float) width / cellsPerTile;
+    invCellSize = 1 / cellSize;
+  }
+
+  /**
+   * Compute the distance field of a map
+   * 
+   * @param m the map
+   * @param cellsPerTile the number of cells along a tile edge
+   * @param pool the pool to compute on, or null to compute on the calling thread
+   * @param obstacles the colors of the obstacle tiles
+   * @return the field
+   */
+  public static DistanceField compute(Map m, int cellsPerTile, ForkJoinPool pool, Color... obstacles)
+  {
+    byte[] mask = obstacleMask(m, obstacles);
+    DistanceField f = new DistanceField(m.getDimX(), m.getDimY(), m.getWidth(), cellsPerTile, crc(mask));
+    float[] d = new float[f.cellsX * f.cellsY];
+
+    // Squared distances in cells; 0 on obstacles
+    float far = (float) f.cellsX * f.cellsX + (float) f.cellsY * f.cellsY;
+    for (int cy = 0; cy < f.cellsY; cy++)
+      for (int cx = 0; cx < f.cellsX; cx++)
+        d[cy * f.cellsX + cx] = mask[(cy / cellsPerTile) * f.dimX + cx / cellsPerTile] != 0 ? 0 : far;
+
+    Pass columns = f.new Pass(d, true, 0, f.cellsX);
+    Pass rows = f.new Pass(d, false, 0, f.cellsY);
+    if (pool == null)
+    {
+      columns.compute();
+      rows.compute();
+    }
+    else
+    {
+      pool.invoke(columns);
+      pool.invoke(rows);
+    }
+    f.distances = FloatBuffer.wrap(d);
+    return f;
+  }
+
+  /**
+   * Load the field of a map from its cache file, or compute it on the
+   * common pool and write the cache file if there is none or it was made
+   * for other obstacles.
+   * 
+   * @param m the map
+   * @param mapFile the file of the map; the cache is this file with .dist appended
+   * @return the field
+   */
+  public static DistanceField cached(Map m, File mapFile, int cellsPerTile, Color... obstacles)
+    throws IOException
+  {
+    File file = new File(mapFile.getPath() + ".dist");
+    if (file.exists())
+    {
+      try {
+        DistanceField f = load(file);
+        if (f.matches(m, cellsPerTile, obstacles)) return f;
+      } catch (IOException e) {
+        System.out.println("Ignoring " + e.getMessage());
+      }
+    }
+    DistanceField f = compute(m, cellsPerTile, ForkJoinPool.commonPool(), obstacles);
+    f.write(file);
+    return f;
+  }
+
+  /**
+   * Return whether this field was computed for a map, cell size and obstacles
+   */
+  public boolean matches(Map m, int cellsPerTile, Color... obstacles)
+  {
+    return dimX == m.getDimX() && dimY == m.getDimY() && width == m.getWidth()
+        && this.cellsPerTile == cellsPerTile && obstacleCRC == crc(obstacleMask(m, obstacles));
+  }
+
+  /**
+   * Return the distance from (x, y) to the nearest obstacle, or infinity
+   * outside the map
+   */
+  public float getDistance(float x, float y)
+  {
+    if (!(x >= 0 && y >= 0)) return Float.POSITIVE_INFINITY;
+    int cx = (int) (x * invCellSize);
+    int cy = (int) (y * invCellSize);
+    if (cx >= cellsX || cy >= cellsY) return Float.POSITIVE_INFINITY;
+    return distances.get(cy * cellsX + cx);
+  }
+
+  public float getCellSize()
+  {
+    return cellSize;
+  }
+
+  /**
+   * Write the field to a file
+   */
+  public void write(File file) throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    header.putInt(MAGIC).putInt(VERSION)
+          .putInt(dimX).putInt(dimY).putInt(width).putInt(cellsPerTile)
+          .putLong(obstacleCRC);
+    header.flip();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      channel.truncate(0);
+      while (header.hasRemaining()) channel.write(header);
+      ByteBuffer body = ByteBuffer.allocate(4 * 4096);
+      FloatBuffer src = distances.duplicate();
+      src.clear();
+      while (src.hasRemaining())
+      {
+        body.clear();
+        while (src.hasRemaining() && body.hasRemaining()) body.putFloat(src.get());
+        body.flip();
+        while (body.hasRemaining()) channel.write(body);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Load a field by memory mapping a file
+   */
+  public static DistanceField load(File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    MappedByteBuffer buffer;
+    try {
+      // The mapping stays valid after the channel is closed
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+
+    if (buffer.remaining() < HEADER || buffer.getInt() != MAGIC)
+      throw new IOException(file + " is not a distance field file");
+    int version = buffer.getInt();
+    if (version != VERSION)
+      throw new IOException(file + " has unsupported distance field version " + version);
+    int dimX = buffer.getInt();
+    int dimY = buffer.getInt();
+    int width = buffer.getInt();
+    int cellsPerTile = buffer.getInt();
+    if (dimX <= 0 || dimY <= 0 || width <= 0 || cellsPerTile <= 0)
+      throw new IOException(file + " has an invalid distance field header");
+    DistanceField f = new DistanceField(dimX, dimY, width, cellsPerTile, buffer.getLong());
+
+    if (buffer.remaining() < 4L * f.cellsX * f.cellsY)
+      throw new IOException(file + " is truncated");
+    f.distances = buffer.slice().asFloatBuffer();
+    return f;
+  }
+
+  private static byte[] obstacleMask(Map m, Color[] obstacles)
+  {
+    boolean[] obstacle = new boolean[m.getTileCount()];
+    for (Color c : obstacles)
+    {
+      int id = m.findTileId(c);
+      if (id >= 0) obstacle[id] = true;
+    }
+    byte[] mask = new byte[m.getDimX() * m.getDimY()];
+    for (int j = 0; j < m.getDimY(); j++)
+      for (int i = 0; i < m.getDimX(); i++)
+        mask[j * m.getDimX() + i] = (byte) (obstacle[m.getTile(i, j)] ? 1 : 0);
+    return mask;
+  }
+
+  private static long crc(byte[] mask)
+  {
+    CRC32 crc = new CRC32();
+    crc.update(mask, 0, mask.length);
+    return crc.getValue();
+  }
+
+  /**
+   * One pass of the distance transform over a range of columns or rows,
+   * split in halves down to GRAIN lines. The row pass also takes the
+   * square root and the distance to the border of the map.
+   */
+  private class Pass extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final float[] d;
+    private final boolean columns;
+    private final int from, to;
+
+    Pass(float[] d, boolean columns, int from, int to)
+    {
+      this.d = d;
+      this.columns = columns;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute()
+    {
+      if (to - from > GRAIN)
+      {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Pass(d, columns, from, mid), new Pass(d, columns, mid, to));
+        return;
+      }
+
+      int n = columns ? cellsY : cellsX;
+      double[] f = new double[n], out = new double[n], z = new double[n + 1];
+      int[] v = new int[n];
+      for (int line = from; line < to; line++)
+      {
+        int start = columns ? line : line * cellsX;
+        int step = columns ? cellsX : 1;
+        for (int k = 0; k < n; k++) f[k] = d[start + k * step];
+        transform(f, n, out, v, z);
+        for (int k = 0; k < n; k++)
+        {
+          double dist = out[k];
+          if (!columns)
+          { // Cell centres to the nearest border, and to map units
+            int cx = k, cy = line;
+            double border = Math.min(Math.min(cx, cellsX - 1 - cx), Math.min(cy, cellsY - 1 - cy)) + 0.5;
+            dist = Math.min(Math.sqrt(dist), border) * cellSize;
+          }
+          d[start + k * step] = (float) dist;
+        }
+      }
+    }
+  }
+
+  /**
+   * The one dimensional squared distance transform of f:
+   * out[q] = min over p of (q - p)^2 + f[p], by the lower envelope of
+   * parabolas (Felzenszwalb and Huttenlocher 2012)
+   */
+  private static void transform(double[] f, int n, double[] out, int[] v, double[] z)
+  {
+    int k = 0;
+    v[0] = 0;
+    z[0] = Double.NEGATIVE_INFINITY;
+    z[1] = Double.POSITIVE_INFINITY;
+    for (int q = 1; q < n; q++)
+    {
+      double s = ((f[q] + (double) q * q) - (f[v[k]] + (double) v[k] * v[k])) / (2 * q - 2 * v[k]);
+      while (s <= z[k])
+      {
+        k--;
+        s = ((f[q] + (double) q * q) - (f[v[k]] + (double) v[k] * v[k])) / (2 * q - 2 * v[k]);
+      }
+      k++;
+      v[k] = q;
+      z[k] = s;
+      z[k + 1] = Double.POSITIVE_INFINITY;
+    }
+    k = 0;
+    for (int q = 0; q < n; q++)
+    {
+      while (z[k + 1] < q) k++;
+      double dq = q - v[k];
+      out[q] = dq * dq + f[v[k]];
+    }
+  }
+}
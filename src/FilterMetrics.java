@@ -0,0 +1,227 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Timings and counters of the particle filter loop: a LatencyHistogram of
+ * the time spent in each phase and counters for resampling.
+ * 
+ * The filter records into a FilterMetrics only when one is set, see
+ * ParticleSet.setMetrics, SensorPipeline.setMetrics and
+ * RenderPipeline.setMetrics; without one the cost is a null check per
+ * phase. Recording never allocates or locks.
+ * 
+ * The metrics can be read through JMX, see register, where every phase
+ * has the attributes <phase>Count, <phase>MeanMicros, <phase>P50Micros,
+ * <phase>P99Micros and <phase>MaxMicros, and with a MetricsReporter.
+ */
+public class FilterMetrics implements DynamicMBean
+{
+  public static final int APPLY_MOVE = 0;
+  public static final int CALCULATE_WEIGHTS = 1;
+  public static final int RESAMPLE = 2;
+  public static final int ESTIMATE_POSE = 3;
+  public static final int READ = 4;
+  public static final int RENDER = 5;
+  public static final String[] PHASES =
+    { "applyMove", "calculateWeights", "resample", "estimatePose", "read", "render" };
+
+  private static final String[] STATISTICS = { "Count", "MeanMicros", "P50Micros", "P99Micros", "MaxMicros" };
+  private static final String[] COUNTERS = { "Resamples", "ResampleIterations", "Lost", "EffectiveSampleSize",
+                                                    "SkippedResamples" };
+
+  private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+  private final AtomicLong resamples = new AtomicLong();
+  private final AtomicLong iterations = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private volatile double effectiveSampleSize;
+
+  public FilterMetrics()
+  {
+    for (int p = 0; p < phases.length; p++) phases[p] = new LatencyHistogram();
+  }
+
+  /**
+   * Record the time spent in a phase
+   * 
+   * @param phase the phase, e.g. APPLY_MOVE
+   * @param nanos the time in ns
+   */
+  public void record(int phase, long nanos)
+  {
+    phases[phase].record(nanos);
+  }
+
+  /**
+   * Record a resampling
+   * 
+   * @param iterations the iterations of the resampler
+   * @param ess the effective sample size of the weights resampled
+   */
+  public void resampled(int iterations, double ess)
+  {
+    resamples.incrementAndGet();
+    this.iterations.addAndGet(iterations);
+    effectiveSampleSize = ess;
+  }
+
+  /**
+   * Record a resampling skipped because the weights were still spread
+   * over enough particles
+   * 
+   * @param ess the effective sample size of the weights
+   */
+  public void skipped(double ess)
+  {
+    skipped.incrementAndGet();
+    effectiveSampleSize = ess;
+  }
+
+  /**
+   * Record that the filter was lost and started over
+   */
+  public void lost()
+  {
+    lost.incrementAndGet();
+  }
+
+  public LatencyHistogram getPhase(int phase)
+  {
+    return phases[phase];
+  }
+
+  public long getResamples()
+  {
+    return resamples.get();
+  }
+
+  public long getResampleIterations()
+  {
+    return iterations.get();
+  }
+
+  public long getLost()
+  {
+    return lost.get();
+  }
+
+  public long getSkippedResamples()
+  {
+    return skipped.get();
+  }
+
+  /**
+   * Return the effective sample size at the last resampling, done or
+   * skipped
+   */
+  public double getEffectiveSampleSize()
+  {
+    return effectiveSampleSize;
+  }
+
+  /**
+   * Forget everything recorded
+   */
+  public void reset()
+  {
+    for (LatencyHistogram h : phases) h.reset();
+    resamples.set(0);
+    iterations.set(0);
+    lost.set(0);
+    skipped.set(0);
+    effectiveSampleSize = 0;
+  }
+
+  /**
+   * Register with the platform MBean server as
+   * robotmonitor:type=FilterMetrics,name=name
+   */
+  public ObjectName register(String name) throws JMException
+  {
+    ObjectName objectName = new ObjectName("robotmonitor:type=FilterMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException
+  {
+    for (int p = 0; p < PHASES.length; p++)
+    {
+      if (!attribute.startsWith(PHASES[p])) continue;
+      String statistic = attribute.substring(PHASES[p].length());
+      LatencyHistogram h = phases[p];
+      if (statistic.equals("Count")) return h.getCount();
+      if (statistic.equals("MeanMicros")) return h.getMean() / 1e3;
+      if (statistic.equals("P50Micros")) return h.getPercentile(50) / 1e3;
+      if (statistic.equals("P99Micros")) return h.getPercentile(99) / 1e3;
+      if (statistic.equals("MaxMicros")) return h.getMax() / 1e3;
+    }
+    if (attribute.equals("Resamples")) return getResamples();
+    if (attribute.equals("ResampleIterations")) return getResampleIterations();
+    if (attribute.equals("Lost")) return getLost();
+    if (attribute.equals("EffectiveSampleSize")) return getEffectiveSampleSize();
+    if (attribute.equals("SkippedResamples")) return getSkippedResamples();
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  public AttributeList getAttributes(String[] attributes)
+  {
+    AttributeList list = new AttributeList();
+    for (String a : attributes)
+    {
+      try {
+        list.add(new Attribute(a, getAttribute(a)));
+      } catch (AttributeNotFoundException e) {
+        // Left out, as the MBean server expects
+      }
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+  {
+    throw new AttributeNotFoundException(attribute.getName() + " is read only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes)
+  {
+    return new AttributeList();
+  }
+
+  public Object invoke(String action, Object[] params, String[] signature)
+  {
+    if (action.equals("reset") && (params == null || params.length == 0))
+    {
+      reset();
+      return null;
+    }
+    throw new UnsupportedOperationException(action);
+  }
+
+  public MBeanInfo getMBeanInfo()
+  {
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[PHASES.length * STATISTICS.length + COUNTERS.length];
+    int a = 0;
+    for (String phase : PHASES)
+      for (String statistic : STATISTICS)
+        attributes[a++] = new MBeanAttributeInfo(phase + statistic,
+            statistic.equals("Count") ? "long" : "double", phase + " " + statistic, true, false, false);
+    for (String counter : COUNTERS)
+      attributes[a++] = new MBeanAttributeInfo(counter,
+          counter.equals("EffectiveSampleSize") ? "double" : "long", counter, true, false, false);
+    MBeanOperationInfo[] operations = {
+      new MBeanOperationInfo("reset", "Forget everything recorded", null, "void", MBeanOperationInfo.ACTION)
+    };
+    return new MBeanInfo(getClass().getName(), "Particle filter timings and counters",
+                         attributes, null, operations, null);
+  }
+}
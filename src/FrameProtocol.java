@@ -0,0 +1,53 @@
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * The framed protocol for records from the NXT. A frame holds a batch of
+ * records:
+ * 
+ *   int   length     number of bytes after this field
+ *   int   sequence   frame number, increased by one per frame
+ *   long  timestamp  sender time in ms
+ *   short count      number of records
+ *   count records of
+ *     byte  type      SensorRecord.TRAVEL or SensorRecord.ROTATE
+ *     float distance
+ *     float angle
+ *     float light
+ *   int   checksum   CRC32 of the bytes from sequence to the last record
+ * 
+ * all in big endian byte order, as written by DataOutputStream.
+ */
+public class FrameProtocol
+{
+  public static final int HEADER_SIZE = 4 + 8 + 2;
+  public static final int RECORD_SIZE = 1 + 4 + 4 + 4;
+  public static final int CHECKSUM_SIZE = 4;
+  public static final int MAX_RECORDS = 256;
+  public static final int MAX_FRAME = 4 + HEADER_SIZE + MAX_RECORDS * RECORD_SIZE + CHECKSUM_SIZE;
+
+  /**
+   * Return the checksum of the bytes from position to limit of a buffer,
+   * without changing its position
+   */
+  static int checksum(CRC32 crc, ByteBuffer b)
+  {
+    crc.reset();
+    crc.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
+    return (int) crc.getValue();
+  }
+
+  static void putRecord(ByteBuffer b, SensorRecord r)
+  {
+    b.put((byte) r.type).putFloat(r.distance).putFloat(r.angle).putFloat(r.light);
+  }
+
+  static void getRecord(ByteBuffer b, SensorRecord r)
+  {
+    r.type = b.get();
+    r.distance = b.getFloat();
+    r.angle = b.getFloat();
+    r.light = b.getFloat();
+  }
+}
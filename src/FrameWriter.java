@@ -0,0 +1,71 @@
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Writes records as frames of the FrameProtocol. Records are collected in
+ * a reusable buffer and written as one frame, with one flush, when the
+ * batch is full or flush() is called.
+ */
+public class FrameWriter
+{
+  private OutputStream out;
+  private ByteBuffer frame = ByteBuffer.allocate(FrameProtocol.MAX_FRAME);
+  private CRC32 crc = new CRC32();
+  private int batchSize, count, sequence;
+
+  /**
+   * Create a writer
+   * 
+   * @param out the stream to write to
+   * @param batchSize the number of records per frame, at most FrameProtocol.MAX_RECORDS
+   */
+  public FrameWriter(OutputStream out, int batchSize)
+  {
+    this.out = out;
+    this.batchSize = Math.min(batchSize, FrameProtocol.MAX_RECORDS);
+    clear();
+  }
+
+  private void clear()
+  {
+    frame.clear();
+    frame.position(4 + FrameProtocol.HEADER_SIZE);
+    count = 0;
+  }
+
+  /**
+   * Add a record to the current frame, writing the frame if it is full
+   */
+  public void write(SensorRecord r) throws IOException
+  {
+    FrameProtocol.putRecord(frame, r);
+    if (++count == batchSize) flush();
+  }
+
+  /**
+   * Write the current frame, if it has any records
+   */
+  public void flush() throws IOException
+  {
+    if (count == 0) return;
+    int end = frame.position();
+    frame.putInt(0, end + FrameProtocol.CHECKSUM_SIZE - 4);
+    frame.putInt(4, sequence++);
+    frame.putLong(8, System.currentTimeMillis());
+    frame.putShort(16, (short) count);
+
+    frame.position(4);
+    frame.limit(end);
+    int checksum = FrameProtocol.checksum(crc, frame);
+    frame.limit(frame.capacity());
+    frame.position(end);
+    frame.putInt(checksum);
+
+    out.write(frame.array(), 0, frame.position());
+    out.flush();
+    clear();
+  }
+}
@@ -0,0 +1,97 @@
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Reads records from frames of the FrameProtocol. A whole frame is read
+ * into a reusable buffer and checked, and its records are then returned
+ * one at a time, so no memory is allocated per record or per frame.
+ * Frames with a bad length or checksum end the stream with an IOException;
+ * gaps in the sequence numbers are counted. The sender time of a record
+ * is the timestamp of its frame.
+ */
+public class FramedRecordSource implements RecordSource
+{
+  private DataInputStream in;
+  private ByteBuffer frame = ByteBuffer.allocate(FrameProtocol.MAX_FRAME);
+  private CRC32 crc = new CRC32();
+  private int remaining;
+  private int sequence = -1;
+  private long frameTimestamp, frames, lostFrames;
+
+  public FramedRecordSource(InputStream in)
+  {
+    this.in = new DataInputStream(in);
+  }
+
+  public boolean read(SensorRecord r) throws IOException
+  {
+    if (remaining == 0 && !readFrame()) return false;
+    FrameProtocol.getRecord(frame, r);
+    r.timestamp = System.nanoTime();
+    r.senderTime = frameTimestamp;
+    remaining--;
+    return true;
+  }
+
+  private boolean readFrame() throws IOException
+  {
+    do {
+      int length;
+      try {
+        length = in.readInt();
+      } catch (EOFException e) {
+        return false;
+      }
+      int min = FrameProtocol.HEADER_SIZE + FrameProtocol.CHECKSUM_SIZE;
+      if (length < min || length > FrameProtocol.MAX_FRAME - 4
+          || (length - min) % FrameProtocol.RECORD_SIZE != 0)
+        throw new IOException("Bad frame length " + length);
+
+      frame.clear();
+      in.readFully(frame.array(), 0, length);
+      int checksum = frame.getInt(length - FrameProtocol.CHECKSUM_SIZE);
+      frame.limit(length - FrameProtocol.CHECKSUM_SIZE);
+      if (FrameProtocol.checksum(crc, frame) != checksum)
+        throw new IOException("Bad frame checksum");
+
+      int seq = frame.getInt();
+      frameTimestamp = frame.getLong();
+      remaining = frame.getShort() & 0xffff;
+      if (remaining != (length - min) / FrameProtocol.RECORD_SIZE)
+        throw new IOException("Bad frame record count " + remaining);
+      if (sequence >= 0 && seq != sequence + 1) lostFrames += seq - sequence - 1;
+      sequence = seq;
+      frames++;
+    } while (remaining == 0);
+    return true;
+  }
+
+  /**
+   * Return the sender timestamp of the last frame, in ms
+   */
+  public long getFrameTimestamp()
+  {
+    return frameTimestamp;
+  }
+
+  /**
+   * Return the number of frames read
+   */
+  public long getFrames()
+  {
+    return frames;
+  }
+
+  /**
+   * Return the number of frames missing from the sequence numbers
+   */
+  public long getLostFrames()
+  {
+    return lostFrames;
+  }
+}
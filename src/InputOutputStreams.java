@@ -2,6 +2,8 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import lejos.pc.comm.NXTConnector;
 
@@ -51,6 +53,34 @@ public class InputOutputStreams
 		return result;
 	}
 	
+	/**
+	 * Write several floats with a single flush
+	 */
+	public void output(float[] params, int n) throws IOException
+	{
+		for (int i = 0; i < n; i++)
+			outDat.writeFloat(params[i]);
+		outDat.flush();
+	}
+	
+	/**
+	 * Read a float, unlike input() reporting errors to the caller
+	 */
+	public float readFloat() throws IOException
+	{
+		return inDat.readFloat();
+	}
+	
+	public InputStream getInputStream()
+	{
+		return inDat;
+	}
+	
+	public OutputStream getOutputStream()
+	{
+		return outDat;
+	}
+	
 	public float input()
 	{
 		float result;
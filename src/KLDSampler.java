@@ -0,0 +1,136 @@
+
+/**
+ * KLD-sampling (Fox 2003) decides how many particles to draw when
+ * resampling. Every drawn particle is put in a histogram bin of size
+ * binSize x binSize x binAngle. With k occupied bins, drawing
+ * 
+ *   n = (k-1)/(2 epsilon) * (1 - 2/(9(k-1)) + sqrt(2/(9(k-1))) z)^3
+ * 
+ * particles bounds the Kullback-Leibler distance between the particle
+ * approximation and the true posterior by epsilon with probability 1-delta,
+ * where z is the upper 1-delta quantile of the standard normal distribution.
+ * 
+ * The occupied bins are kept in an open addressing hash set of packed bin
+ * coordinates. The set is cleared by bumping a generation stamp, so starting
+ * a new resampling costs nothing.
+ */
+public class KLDSampler
+{
+  private int minParticles, maxParticles;
+  private float binSize, binAngle;
+  private double epsilon, z;
+
+  private long[] keys;
+  private int[] stamps;
+  private int stamp, mask, bins;
+
+  /**
+   * Create a sampler
+   * 
+   * @param minParticles the smallest number of particles to draw
+   * @param maxParticles the largest number of particles to draw
+   * @param binSize the size of a bin in x and y
+   * @param binAngle the size of a bin in heading, in degrees
+   * @param epsilon the bound on the Kullback-Leibler distance
+   * @param delta the probability that the bound does not hold
+   */
+  public KLDSampler(int minParticles, int maxParticles, float binSize, float binAngle,
+                    double epsilon, double delta)
+  {
+    this.minParticles = minParticles;
+    this.maxParticles = maxParticles;
+    this.binSize = binSize;
+    this.binAngle = binAngle;
+    this.epsilon = epsilon;
+    this.z = upperQuantile(delta);
+    int capacity = Integer.highestOneBit(Math.max(2 * maxParticles - 1, 1)) << 1;
+    keys = new long[capacity];
+    stamps = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  public int getMinParticles()
+  {
+    return minParticles;
+  }
+
+  public int getMaxParticles()
+  {
+    return maxParticles;
+  }
+
+  /**
+   * Return the number of bins occupied since the last reset
+   * 
+   * @return the number of occupied bins
+   */
+  public int getBins()
+  {
+    return bins;
+  }
+
+  /**
+   * Forget all occupied bins
+   */
+  public void reset()
+  {
+    bins = 0;
+    if (++stamp == 0)
+    { // Wrapped around; clear the stamps for real
+      java.util.Arrays.fill(stamps, 0);
+      stamp = 1;
+    }
+  }
+
+  /**
+   * Add a drawn particle and return whether more particles are needed
+   * 
+   * @param n the number of particles drawn, including this one
+   * @return true iff another particle should be drawn
+   */
+  public boolean add(int n, float x, float y, float heading)
+  {
+    long ix = (long) Math.floor(x / binSize);
+    long iy = (long) Math.floor(y / binSize);
+    long ih = (long) Math.floor(heading / binAngle);
+    long key = ((ix & 0x1fffff) << 42) | ((iy & 0x1fffff) << 21) | (ih & 0x1fffff);
+
+    int slot = (int) (key ^ (key >>> 29) ^ (key >>> 47)) * 0x9e3779b9 & mask;
+    while (stamps[slot] == stamp && keys[slot] != key) slot = (slot + 1) & mask;
+    if (stamps[slot] != stamp)
+    {
+      stamps[slot] = stamp;
+      keys[slot] = key;
+      bins++;
+    }
+
+    if (n >= maxParticles) return false;
+    return n < minParticles || n < required(bins);
+  }
+
+  /**
+   * Return the number of particles needed for k occupied bins
+   * 
+   * @param k the number of occupied bins
+   * @return the number of particles
+   */
+  public int required(int k)
+  {
+    if (k < 2) return 1;
+    double a = 2.0 / (9.0 * (k - 1));
+    double b = 1 - a + Math.sqrt(a) * z;
+    return (int) Math.ceil((k - 1) / (2 * epsilon) * b * b * b);
+  }
+
+  /**
+   * The upper 1-p quantile of the standard normal distribution
+   * (Abramowitz and Stegun 26.2.23, error below 4.5e-4)
+   */
+  private static double upperQuantile(double p)
+  {
+    if (p > 0.5) return -upperQuantile(1 - p);
+    double t = Math.sqrt(-2 * Math.log(p));
+    return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+             / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+  }
+}
@@ -0,0 +1,108 @@
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram: values below
+ * SUB_BUCKETS are counted exactly, and larger values in SUB_BUCKETS/2
+ * linear buckets per power of two, so the relative error of a reported
+ * percentile is below 2/SUB_BUCKETS over the whole range of a long.
+ * Recording is a few shifts and one atomic increment, and never
+ * allocates; the histogram can be read while other threads record into
+ * it.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int HALF = SUB_BUCKETS / 2;
+
+  private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 2) * HALF);
+  private final AtomicLongArray totals = new AtomicLongArray(3); // count, sum, max
+
+  /**
+   * Record a value, e.g. a latency in ns
+   */
+  public void record(long value)
+  {
+    if (value < 0) value = 0;
+    counts.incrementAndGet(index(value));
+    totals.incrementAndGet(0);
+    totals.addAndGet(1, value);
+    long max;
+    while (value > (max = totals.get(2)) && !totals.compareAndSet(2, max, value));
+  }
+
+  private static int index(long value)
+  {
+    // Shift the value so it fits in SUB_BITS bits; from exponent 1 on the
+    // top bit is set, so only the upper half of the sub-buckets is used
+    int exponent = 64 - SUB_BITS - Long.numberOfLeadingZeros(value | (SUB_BUCKETS - 1));
+    return exponent * HALF + (int) (value >>> exponent);
+  }
+
+  /**
+   * Return the highest value that falls in a bucket
+   */
+  private static long highestValue(int index)
+  {
+    int exponent = (index < SUB_BUCKETS) ? 0 : index / HALF - 1;
+    long mantissa = index - exponent * HALF;
+    return ((mantissa + 1) << exponent) - 1;
+  }
+
+  public long getCount()
+  {
+    return totals.get(0);
+  }
+
+  public long getMax()
+  {
+    return totals.get(2);
+  }
+
+  public double getMean()
+  {
+    long count = totals.get(0);
+    return (count == 0) ? 0 : (double) totals.get(1) / count;
+  }
+
+  /**
+   * Return the value below which a percentage of the recorded values are
+   * 
+   * @param percentile the percentage, from 0 to 100
+   * @return the value, within the precision of the buckets
+   */
+  public long getPercentile(double percentile)
+  {
+    long total = 0;
+    for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+    if (total == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++)
+    {
+      seen += counts.get(i);
+      if (seen >= rank) return Math.min(highestValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  /**
+   * Forget all recorded values
+   */
+  public void reset()
+  {
+    for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+    for (int i = 0; i < 3; i++) totals.set(i, 0);
+  }
+
+  /**
+   * Return the 50, 90, 99 and 100 percentiles in microseconds, for values in ns
+   */
+  public String toString()
+  {
+    return String.format("n=%d p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+                         getCount(), getPercentile(50) / 1e3, getPercentile(90) / 1e3,
+                         getPercentile(99) / 1e3, getMax() / 1e3);
+  }
+}
@@ -0,0 +1,40 @@
+
+import java.util.Random;
+
+/**
+ * The original resampling algorithm of ParticleSet, kept for comparison.
+ * 
+ * Continually pick a random number and select the particles with weights
+ * greater than or equal to it until enough particles are selected. This
+ * takes O(n) per iteration and gives up after ParticleSet.maxIterations
+ * iterations. Weights are compared as absolute values, so it only makes
+ * sense for weights in [0, 1].
+ */
+public class LegacyResampler implements Resampler
+{
+  private int iterations;
+
+  public int resample(float[] weight, double[] cumulative, int n, int[] parent, int m, Random rand)
+  {
+    int count = 0;
+    iterations = 0;
+
+    while (count < m)
+    {
+      iterations++;
+      if (iterations >= ParticleSet.maxIterations) return count;
+
+      float r = rand.nextFloat();
+      for (int i = 0; i < n && count < m; i++)
+      {
+        if (weight[i] >= r) parent[count++] = i;
+      }
+    }
+    return count;
+  }
+
+  public int getIterations()
+  {
+    return iterations;
+  }
+}
@@ -0,0 +1,237 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Localizes a fleet of robots in one JVM. Every robot has its own
+ * RobotSession with its own particle set and random seed; all sessions
+ * share one read only map and sensor model. The filter work of all the
+ * sessions runs on one fixed size thread pool.
+ * 
+ * Robots are connected either over TCP, one connection per robot sending
+ * FrameProtocol frames, or through standard input, where every line
+ * 
+ *   robot-id type distance angle light
+ * 
+ * is a record for the named robot. Both stand in for the NXT links.
+ * 
+ * Usage: java LocalizationServer (tcp port | stdin) [particles [threads [map-file]]]
+ */
+public class LocalizationServer
+{
+  private static final int QUEUE_CAPACITY = 64;
+
+  private final Map map;
+  private final SensorModel model;
+  private final int numParticles;
+  private final ExecutorService pool;
+  private final SplittableRandom seeds;
+  private final ConcurrentHashMap<String, RobotSession> robots =
+      new ConcurrentHashMap<String, RobotSession>();
+
+  /**
+   * Create a server
+   * 
+   * @param m the map of all the robots
+   * @param model the sensor model of all the robots
+   * @param numParticles the number of particles per robot
+   * @param threads the number of threads running the filters
+   * @param seed the seed the seeds of the robots are drawn from
+   */
+  public LocalizationServer(Map m, SensorModel model, int numParticles, int threads, long seed)
+  {
+    map = m.readOnly();
+    this.model = model;
+    this.numParticles = numParticles;
+    seeds = new SplittableRandom(seed);
+    final AtomicInteger count = new AtomicInteger();
+    pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "LocalizationServer filter " + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Add a robot
+   * 
+   * @param id the name of the robot
+   * @param source the records of the robot, or null to put them with RobotSession.put
+   * @return the session of the robot
+   */
+  public synchronized RobotSession addRobot(String id, RecordSource source)
+  {
+    if (robots.containsKey(id)) throw new IllegalArgumentException("Robot " + id + " exists");
+    RobotSession session = new RobotSession(id, map, model, numParticles, seeds.nextLong(),
+                                            QUEUE_CAPACITY, pool, source);
+    robots.put(id, session);
+    return session;
+  }
+
+  public RobotSession getRobot(String id)
+  {
+    return robots.get(id);
+  }
+
+  public Collection<RobotSession> getRobots()
+  {
+    return robots.values();
+  }
+
+  /**
+   * Accept robots over TCP, forever. The robots are named after the order
+   * they connect in.
+   */
+  public void listen(int port) throws IOException
+  {
+    ServerSocket server = new ServerSocket(port);
+    try {
+      int n = 0;
+      while (true)
+      {
+        Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        String id = "robot-" + (n++);
+        addRobot(id, new FramedRecordSource(socket.getInputStream()));
+        System.out.println("Connected " + id + " from " + socket.getRemoteSocketAddress());
+      }
+    } finally {
+      server.close();
+    }
+  }
+
+  /**
+   * Read records for any number of robots from standard input until it
+   * ends. A line that is not a record is skipped with a message.
+   */
+  public void readStdin() throws IOException
+  {
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    SensorRecord r = new SensorRecord();
+    String line;
+    while ((line = in.readLine()) != null)
+    {
+      String[] f = line.trim().split("\\s+");
+      if (f.length == 1 && f[0].isEmpty()) continue;
+      try {
+        if (f.length != 5) throw new IllegalArgumentException("expected 5 fields");
+        r.type = Integer.parseInt(f[1]);
+        if (r.type != SensorRecord.TRAVEL && r.type != SensorRecord.ROTATE)
+          throw new IllegalArgumentException("type " + r.type);
+        r.distance = Float.parseFloat(f[2]);
+        r.angle = Float.parseFloat(f[3]);
+        r.light = Float.parseFloat(f[4]);
+      } catch (IllegalArgumentException e) {
+        System.out.println("Skipped \"" + line + "\": " + e.getMessage());
+        continue;
+      }
+      RobotSession session = robots.get(f[0]);
+      if (session == null) session = addRobot(f[0], null);
+      r.timestamp = System.nanoTime();
+      r.senderTime = -1;
+      session.put(r);
+    }
+  }
+
+  /**
+   * Print the pose and latency percentiles of every robot
+   */
+  public void report()
+  {
+    for (RobotSession s : robots.values())
+    {
+      System.out.println(s.getId() + " pose " + format(s) + " queued " + s.getPipeline().getDepth());
+      System.out.println("  update     " + s.getUpdateLatency());
+      System.out.println("  end to end " + s.getEndToEndLatency());
+      if (s.getFailure() != null) System.out.println("  failed     " + s.getFailure());
+    }
+  }
+
+  private static String format(RobotSession s)
+  {
+    lejos.robotics.navigation.Pose p = s.getPose();
+    return (p == null) ? "-" : p.getX() + " " + p.getY() + " " + p.getHeading();
+  }
+
+  /**
+   * Stop all the robots and the pool. The updates already queued still
+   * run, see awaitTermination.
+   */
+  public void shutdown()
+  {
+    for (RobotSession s : robots.values()) s.stop();
+    pool.shutdown();
+  }
+
+  /**
+   * Wait for the updates still running after shutdown
+   * 
+   * @return false if they did not finish within the timeout
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return pool.awaitTermination(timeout, unit);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1 || (args[0].equals("tcp") && args.length < 2))
+    {
+      System.out.println("Usage: java LocalizationServer (tcp port | stdin) [particles [threads [map-file]]]");
+      return;
+    }
+    int a = args[0].equals("tcp") ? 2 : 1;
+    int particles = (args.length > a) ? Integer.parseInt(args[a]) : 1000;
+    int threads = (args.length > a + 1) ? Integer.parseInt(args[a + 1])
+                                        : Runtime.getRuntime().availableProcessors();
+    Map m = (args.length > a + 2) ? MapFile.load(new File(args[a + 2])) : RobotMonitor.defaultMap();
+    SensorModel model = RobotMonitor.defaultSensorModel(m);
+
+    final LocalizationServer server = new LocalizationServer(m, model, particles, threads, 1);
+    Thread reporter = new Thread(new Runnable() {
+      public void run()
+      {
+        while (true)
+        {
+          try {
+            Thread.sleep(5000);
+          } catch (InterruptedException e) {
+            return;
+          }
+          server.report();
+        }
+      }
+    }, "LocalizationServer report");
+    reporter.setDaemon(true);
+    reporter.start();
+
+    if (args[0].equals("tcp"))
+      server.listen(Integer.parseInt(args[1]));
+    else
+    {
+      server.readStdin();
+      // Let the filters finish the queued records
+      for (RobotSession s : server.getRobots())
+        while (s.getPipeline().getDepth() > 0) Thread.sleep(10);
+      server.shutdown();
+      if (!server.awaitTermination(1, TimeUnit.MINUTES))
+        System.out.println("Updates still running");
+      server.report();
+    }
+  }
+}
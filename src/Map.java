@@ -1,11 +1,43 @@
 import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import lejos.robotics.navigation.Pose;
 
+/**
+ * A 2D map of square tiles. Each tile holds a one byte tile id, an index
+ * into a small palette of colors, so a map of dimX x dimY tiles takes
+ * dimX*dimY bytes stored row by row. Particles look up tiles with
+ * getTile(x, y), which only needs a multiplication by the inverse tile
+ * width and one buffer load; getColor is kept for the GUI.
+ *
+ * The tiles are held in a ByteBuffer, so a map loaded by MapFile can use
+ * the memory mapped file directly without copying it.
+ *
+ * For drawing positions on tiles of a given color, e.g. particles that
+ * agree with a light reading, the tiles of each tile id are listed in an
+ * index built when it is first needed and kept up to date by setColor,
+ * which moves a tile from one list to another in constant time, see
+ * randomTile.
+ */
 public class Map 
 {
+	/** The tile id of positions outside the map */
+	public static final int OUTSIDE = -1;
+
 	// The map of the robot environment
 	int dimX, dimY, width, rangeX, rangeY;
-	private Color[][]  map;
+	private float invWidth;
+	private ByteBuffer tiles;
+	private ArrayList<Color> palette = new ArrayList<Color>();
+	// The index of the tiles of each tile id, see indexTiles
+	private volatile boolean indexed;
+	private int[][] tilesOf;
+	private int[] tileCounts;
+	private int[] slots; // the place of each tile in the list of its tile id
     
     public Map(int dimX, int dimY, int width)
     {
@@ -14,29 +46,214 @@ public class Map
     	this.width = width;
     	rangeX = dimX*width;
     	rangeY = dimY*width;
-    	map = new Color[dimX][dimY];
-    	for (int i = 0; i < dimX; i++)
-    	for (int j = 0; j < dimY; j++) map[i][j] = Color.WHITE;
+    	invWidth = 1.0f/width;
+    	tiles = ByteBuffer.allocate(dimX*dimY);
+    	palette.add(Color.WHITE); // tile id 0, so every tile starts white
+    	palette.add(Color.BLACK);
     }
     
+    /**
+     * Create a map on existing tile data, e.g. a memory mapped file
+     *
+     * @param tiles dimX*dimY tile ids, row by row, from position 0
+     * @param palette the colors of the tile ids
+     */
+    Map(int dimX, int dimY, int width, ByteBuffer tiles, List<Color> palette)
+    {
+    	this.dimX = dimX;
+    	this.dimY = dimY;
+    	this.width = width;
+    	rangeX = dimX*width;
+    	rangeY = dimY*width;
+    	invWidth = 1.0f/width;
+    	this.tiles = tiles;
+    	this.palette.addAll(palette);
+    }
+
+    /**
+     * Return a read only view of the tile ids, row by row
+     */
+    ByteBuffer getTiles()
+    {
+    	ByteBuffer b = tiles.asReadOnlyBuffer();
+    	b.clear();
+    	return b;
+    }
+
+    /**
+     * Return the tile id of a color, adding the color to the palette
+     * if it is not there
+     */
+    public int tileId(Color c)
+    {
+    	int id = palette.indexOf(c);
+    	if ( id < 0 )
+    	{
+    		if ( palette.size() > 255 )
+    			throw new IllegalArgumentException("Too many tile colors");
+    		palette.add(c);
+    		id = palette.size()-1;
+    	}
+    	return id;
+    }
+
+    /**
+     * Return the tile id of a color, or OUTSIDE if the color is not
+     * used on the map
+     */
+    public int findTileId(Color c)
+    {
+    	return palette.indexOf(c);
+    }
+
+    /**
+     * Return the color of a tile id
+     */
+    public Color getTileColor(int id)
+    {
+    	return ( id == OUTSIDE ) ? Color.ORANGE : palette.get(id);
+    }
+
+    /**
+     * Return the number of tile ids in use
+     */
+    public int getTileCount()
+    {
+    	return palette.size();
+    }
     
     public void setColor(int i, int j, Color c)
     {
-    	map[i][j] = c;
+    	if ( tiles.isReadOnly() )
+    		throw new ReadOnlyBufferException();
+    	int k = j*dimX + i;
+    	int old = tiles.get(k) & 0xff, id = tileId(c);
+    	tiles.put(k, (byte) id);
+    	if ( indexed && id != old )
+    		moveTile(k, old, id);
+    }
+
+    /**
+     * Return the number of tiles with a tile id
+     */
+    public int countTiles(int id)
+    {
+    	indexTiles();
+    	return ( id >= 0 && id < tileCounts.length ) ? tileCounts[id] : 0;
+    }
+
+    /**
+     * Return the k'th tile with a tile id, as the index j*dimX + i
+     *
+     * @param id the tile id
+     * @param k from 0 to countTiles(id)-1
+     */
+    public int getTileOf(int id, int k)
+    {
+    	indexTiles();
+    	return tilesOf[id][k];
+    }
+
+    /**
+     * Return a random tile with a tile id, as the index j*dimX + i
+     *
+     * @param id a tile id with countTiles(id) > 0
+     */
+    public int randomTile(int id, Random r)
+    {
+    	indexTiles();
+    	return tilesOf[id][r.nextInt(tileCounts[id])];
+    }
+
+    /**
+     * List the tiles of each tile id, the first time the index is used
+     */
+    private synchronized void indexTiles()
+    {
+    	if ( indexed )
+    		return;
+    	int ids = Math.max(palette.size(), 1);
+    	tileCounts = new int[ids];
+    	for ( int k = 0; k < dimX*dimY; k++ )
+    		tileCounts[tiles.get(k) & 0xff]++;
+    	tilesOf = new int[ids][];
+    	for ( int id = 0; id < ids; id++ )
+    		tilesOf[id] = new int[Math.max(tileCounts[id], 4)];
+    	slots = new int[dimX*dimY];
+    	Arrays.fill(tileCounts, 0);
+    	for ( int k = 0; k < dimX*dimY; k++ )
+    	{
+    		int id = tiles.get(k) & 0xff;
+    		slots[k] = tileCounts[id];
+    		tilesOf[id][tileCounts[id]++] = k;
+    	}
+    	indexed = true;
+    }
+
+    /**
+     * Move tile k from the list of tile id from to the list of tile id to:
+     * the last tile of the old list takes its place there, and the list of
+     * the new id grows by doubling
+     */
+    private void moveTile(int k, int from, int to)
+    {
+    	int last = tilesOf[from][--tileCounts[from]];
+    	tilesOf[from][slots[k]] = last;
+    	slots[last] = slots[k];
+
+    	if ( to >= tilesOf.length )
+    	{
+    		tilesOf = Arrays.copyOf(tilesOf, palette.size());
+    		tileCounts = Arrays.copyOf(tileCounts, palette.size());
+    	}
+    	if ( tilesOf[to] == null )
+    		tilesOf[to] = new int[4];
+    	else if ( tileCounts[to] == tilesOf[to].length )
+    		tilesOf[to] = Arrays.copyOf(tilesOf[to], 2*tilesOf[to].length);
+    	slots[k] = tileCounts[to];
+    	tilesOf[to][tileCounts[to]++] = k;
+    }
+
+    /**
+     * Return a read only map sharing the tiles of this one, which can be
+     * used by several threads at once
+     */
+    public Map readOnly()
+    {
+    	return new Map(dimX, dimY, width, tiles.asReadOnlyBuffer(), palette);
     }
     
     public Color getColor(int i, int j)
     {
-    	return (map[i][j]);
+    	return palette.get(getTile(i, j));
     }
     
     public Color getColor(Pose p)
     {
-    	float x = p.getX(), y = p.getY();
-    	if ( x < 0 || x > rangeX || y < 0 || y > rangeY )
-    		return Color.ORANGE;
-    	else
-    		return map[(int)(x/width)][(int)(y/width)];
+    	return getTileColor(getTile(p.getX(), p.getY()));
+    }
+
+    public Color getColor(float x, float y)
+    {
+    	return getTileColor(getTile(x, y));
+    }
+
+    public int getTile(int i, int j)
+    {
+    	return tiles.get(j*dimX + i) & 0xff;
+    }
+
+    /**
+     * Return the id of the tile at position (x, y), or OUTSIDE
+     */
+    public int getTile(float x, float y)
+    {
+    	if ( !(x >= 0 && x < rangeX && y >= 0 && y < rangeY) )
+    		return OUTSIDE;
+    	// Rounding can take the last fraction of the map onto the next tile
+    	int i = Math.min((int)(x*invWidth), dimX-1);
+    	int j = Math.min((int)(y*invWidth), dimY-1);
+    	return tiles.get(j*dimX + i) & 0xff;
     }
     
     public int getWidth()
@@ -0,0 +1,107 @@
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Binary map files. A map file is a header followed by the tile ids:
+ * 
+ *   int  magic    'MCLM'
+ *   int  version  1
+ *   int  dimX, dimY, width
+ *   int  number of palette colors, followed by that many ARGB values
+ *   byte dimX*dimY tile ids, row by row from j = 0
+ * 
+ * all in big endian byte order. A loaded map uses a read only memory mapping
+ * of the file as its tile data, so loading neither parses nor copies the
+ * tiles. setColor on a loaded map throws a ReadOnlyBufferException.
+ */
+public class MapFile
+{
+  public static final int MAGIC = 0x4d434c4d; // "MCLM"
+  public static final int VERSION = 1;
+
+  /**
+   * Write a map to a file
+   * 
+   * @param m the map
+   * @param file the file to write
+   */
+  public static void write(Map m, File file) throws IOException
+  {
+    int paletteSize = m.getTileCount();
+    ByteBuffer header = ByteBuffer.allocate(4 * (6 + paletteSize));
+    header.putInt(MAGIC).putInt(VERSION)
+          .putInt(m.getDimX()).putInt(m.getDimY()).putInt(m.getWidth())
+          .putInt(paletteSize);
+    for (int id = 0; id < paletteSize; id++) header.putInt(m.getTileColor(id).getRGB());
+    header.flip();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      channel.truncate(0);
+      ByteBuffer tiles = m.getTiles();
+      while (header.hasRemaining()) channel.write(header);
+      while (tiles.hasRemaining()) channel.write(tiles);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Load a map by memory mapping a map file
+   * 
+   * @param file the file to load
+   * @return the map
+   */
+  public static Map load(File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    MappedByteBuffer buffer;
+    try {
+      // The mapping stays valid after the channel is closed
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+
+    if (buffer.remaining() < 24 || buffer.getInt() != MAGIC)
+      throw new IOException(file + " is not a map file");
+    int version = buffer.getInt();
+    if (version != VERSION)
+      throw new IOException(file + " has unsupported map file version " + version);
+    int dimX = buffer.getInt();
+    int dimY = buffer.getInt();
+    int width = buffer.getInt();
+    int paletteSize = buffer.getInt();
+    if (dimX <= 0 || dimY <= 0 || width <= 0 || paletteSize <= 0 || paletteSize > 256)
+      throw new IOException(file + " has an invalid map header");
+
+    ArrayList<Color> palette = new ArrayList<Color>();
+    for (int id = 0; id < paletteSize; id++) palette.add(color(buffer.getInt()));
+
+    if (buffer.remaining() < (long) dimX * dimY)
+      throw new IOException(file + " is truncated");
+    ByteBuffer tiles = buffer.slice();
+    tiles.limit(dimX * dimY);
+    return new Map(dimX, dimY, width, tiles, palette);
+  }
+
+  /**
+   * Return the Color constant for an RGB value if there is one, so tiles
+   * can still be compared with == Color.BLACK
+   */
+  private static Color color(int rgb)
+  {
+    Color[] known = { Color.WHITE, Color.BLACK, Color.GRAY, Color.LIGHT_GRAY, Color.DARK_GRAY };
+    for (Color c : known)
+      if (c.getRGB() == rgb) return c;
+    return new Color(rgb, true);
+  }
+}
@@ -0,0 +1,132 @@
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Converts a floor image into a map file. Every pixel becomes one tile:
+ * pixels darker than the black level become black tiles, pixels lighter
+ * than the white level white tiles, and the ones in between grey tiles.
+ * The top row of the image is the tile row with the largest y.
+ * 
+ * PNG (and the other formats ImageIO reads) and binary (P5) or plain (P2)
+ * PGM images are supported.
+ * 
+ * Usage: java MapImporter image map-file tile-width [black-level white-level]
+ */
+public class MapImporter
+{
+  /**
+   * Read an image into a map
+   * 
+   * @param image the image file
+   * @param width the width of a tile
+   * @param blackLevel grey levels (0-255) below this are black
+   * @param whiteLevel grey levels (0-255) above this are white
+   * @return the map
+   */
+  public static Map importImage(File image, int width, int blackLevel, int whiteLevel) throws IOException
+  {
+    int[][] grey = image.getName().toLowerCase().endsWith(".pgm") ? readPGM(image) : readImage(image);
+    int dimY = grey.length, dimX = grey[0].length;
+    Map m = new Map(dimX, dimY, width);
+    for (int row = 0; row < dimY; row++)
+    {
+      int j = dimY - 1 - row;
+      for (int i = 0; i < dimX; i++)
+      {
+        int g = grey[row][i];
+        if (g < blackLevel) m.setColor(i, j, Color.BLACK);
+        else if (g > whiteLevel) m.setColor(i, j, Color.WHITE);
+        else m.setColor(i, j, Color.GRAY);
+      }
+    }
+    return m;
+  }
+
+  private static int[][] readImage(File file) throws IOException
+  {
+    BufferedImage img = ImageIO.read(file);
+    if (img == null) throw new IOException("Unknown image format: " + file);
+    int[][] grey = new int[img.getHeight()][img.getWidth()];
+    for (int row = 0; row < grey.length; row++)
+      for (int i = 0; i < grey[row].length; i++)
+      {
+        int rgb = img.getRGB(i, row);
+        int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+        grey[row][i] = (299 * r + 587 * g + 114 * b) / 1000;
+      }
+    return grey;
+  }
+
+  private static int[][] readPGM(File file) throws IOException
+  {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      String magic = token(in);
+      if (!magic.equals("P5") && !magic.equals("P2"))
+        throw new IOException("Not a PGM image: " + file);
+      int w = Integer.parseInt(token(in));
+      int h = Integer.parseInt(token(in));
+      int max = Integer.parseInt(token(in));
+      int[][] grey = new int[h][w];
+      for (int row = 0; row < h; row++)
+        for (int i = 0; i < w; i++)
+        {
+          int v;
+          if (magic.equals("P2")) v = Integer.parseInt(token(in));
+          else if (max < 256) v = in.read();
+          else v = (in.read() << 8) | in.read();
+          if (v < 0) throw new IOException("Truncated PGM image: " + file);
+          grey[row][i] = v * 255 / max;
+        }
+      return grey;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Read the next whitespace separated token of a PGM header, skipping
+   * comments. The single whitespace after the token is consumed.
+   */
+  private static String token(InputStream in) throws IOException
+  {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != -1)
+    {
+      if (c == '#' && sb.length() == 0)
+      {
+        while ((c = in.read()) != -1 && c != '\n');
+      }
+      else if (Character.isWhitespace(c))
+      {
+        if (sb.length() > 0) break;
+      }
+      else sb.append((char) c);
+    }
+    if (sb.length() == 0) throw new IOException("Truncated PGM header");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length != 3 && args.length != 5)
+    {
+      System.out.println("Usage: java MapImporter image map-file tile-width [black-level white-level]");
+      return;
+    }
+    int width = Integer.parseInt(args[2]);
+    int black = (args.length == 5) ? Integer.parseInt(args[3]) : 128;
+    int white = (args.length == 5) ? Integer.parseInt(args[4]) : 127;
+    Map m = importImage(new File(args[0]), width, black, white);
+    MapFile.write(m, new File(args[1]));
+    System.out.println("Wrote " + m.getDimX() + " x " + m.getDimY() + " tiles to " + args[1]);
+  }
+}
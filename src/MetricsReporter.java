@@ -0,0 +1,95 @@
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the FilterMetrics as a line of CSV at a fixed period, on its own
+ * daemon thread: the wall clock time in ms, then count, mean, p50, p99
+ * and max in microseconds of every phase, then the resampling counters.
+ * The values are totals since the metrics were last reset; the
+ * differences of the counts between lines give the rates.
+ */
+public class MetricsReporter
+{
+  private final FilterMetrics metrics;
+  private final PrintStream out;
+  private ScheduledExecutorService timer;
+
+  public MetricsReporter(FilterMetrics metrics, PrintStream out)
+  {
+    this.metrics = metrics;
+    this.out = out;
+  }
+
+  /**
+   * Write the header and then a line every period
+   */
+  public synchronized void start(long period, TimeUnit unit)
+  {
+    if (timer != null) return;
+    out.println(header());
+    timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r)
+      {
+        Thread t = new Thread(r, "MetricsReporter");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    timer.scheduleAtFixedRate(new Runnable() {
+      public void run()
+      {
+        report();
+      }
+    }, period, period, unit);
+  }
+
+  public synchronized void stop()
+  {
+    if (timer == null) return;
+    timer.shutdown();
+    timer = null;
+    report();
+  }
+
+  public String header()
+  {
+    StringBuilder b = new StringBuilder("time");
+    for (String phase : FilterMetrics.PHASES)
+      b.append(',').append(phase).append("_count")
+       .append(',').append(phase).append("_mean_us")
+       .append(',').append(phase).append("_p50_us")
+       .append(',').append(phase).append("_p99_us")
+       .append(',').append(phase).append("_max_us");
+    b.append(",resamples,resample_iterations,lost,ess,skipped_resamples");
+    return b.toString();
+  }
+
+  /**
+   * Write a line now
+   */
+  public void report()
+  {
+    StringBuilder b = new StringBuilder();
+    b.append(System.currentTimeMillis());
+    for (int p = 0; p < FilterMetrics.PHASES.length; p++)
+    {
+      LatencyHistogram h = metrics.getPhase(p);
+      b.append(',').append(h.getCount());
+      b.append(',').append(String.format(Locale.ROOT, "%.1f", h.getMean() / 1e3));
+      b.append(',').append(String.format(Locale.ROOT, "%.1f", h.getPercentile(50) / 1e3));
+      b.append(',').append(String.format(Locale.ROOT, "%.1f", h.getPercentile(99) / 1e3));
+      b.append(',').append(String.format(Locale.ROOT, "%.1f", h.getMax() / 1e3));
+    }
+    b.append(',').append(metrics.getResamples());
+    b.append(',').append(metrics.getResampleIterations());
+    b.append(',').append(metrics.getLost());
+    b.append(',').append(String.format(Locale.ROOT, "%.1f", metrics.getEffectiveSampleSize()));
+    b.append(',').append(metrics.getSkippedResamples());
+    out.println(b);
+    out.flush();
+  }
+}
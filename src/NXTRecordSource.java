@@ -0,0 +1,35 @@
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads records from the NXT as four floats: move type (0 is travel,
+ * otherwise rotate), distance, angle and light value. This is the original
+ * protocol; see FramedRecordSource for the framed one.
+ */
+public class NXTRecordSource implements RecordSource
+{
+  private InputOutputStreams NXT;
+
+  public NXTRecordSource(InputOutputStreams NXT)
+  {
+    this.NXT = NXT;
+  }
+
+  public boolean read(SensorRecord r) throws IOException
+  {
+    int type;
+    try {
+      type = (int) NXT.readFloat();
+    } catch (EOFException e) {
+      return false;
+    }
+    r.type = (type == 0) ? SensorRecord.TRAVEL : SensorRecord.ROTATE;
+    r.distance = NXT.readFloat();
+    r.angle = NXT.readFloat();
+    r.light = NXT.readFloat();
+    r.timestamp = System.nanoTime();
+    r.senderTime = -1;
+    return true;
+  }
+}
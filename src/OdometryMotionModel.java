@@ -0,0 +1,178 @@
+import lejos.robotics.navigation.Move;
+
+/**
+ * The odometry motion model of Thrun, Burgard and Fox (Probabilistic
+ * Robotics, table 5.6). A motion is decomposed into a rotation rot1
+ * towards the end point, a translation trans and a final rotation rot2,
+ * and each is disturbed by normal noise with variance
+ * 
+ *   rot1:  alpha1 rot1^2 + alpha2 trans^2
+ *   trans: alpha3 trans^2 + alpha4 (rot1^2 + rot2^2)
+ *   rot2:  alpha1 rot2^2 + alpha2 trans^2
+ * 
+ * with rotations in degrees.
+ * 
+ * Moves are composed as they are added, so a queue of small moves,
+ * TRAVEL, ROTATE or ARC, becomes one relative motion that ParticleSet
+ * applies to all particles in a single pass, see ParticleSet.applyMotion.
+ * A move backwards is kept as a negative translation instead of a half
+ * turn, a translation and another half turn.
+ */
+public class OdometryMotionModel
+{
+  private static final float MIN_TRANSLATION = 1e-4f;
+
+  private float alpha1 = 0.01f;    // rotation from rotation
+  private float alpha2 = 0.01f;    // rotation from translation, degrees^2 per distance^2
+  private float alpha3 = 0.0004f;  // translation from translation
+  private float alpha4 = 0.0001f;  // translation from rotation, distance^2 per degrees^2
+
+  // The composed motion, in the frame of the robot before it
+  private float dx, dy, dHeading;
+  private int moves;
+
+  // The decomposition of the motion
+  private float rot1, trans, rot2;
+
+  /**
+   * Set the noise parameters
+   */
+  public void setNoise(float alpha1, float alpha2, float alpha3, float alpha4)
+  {
+    this.alpha1 = alpha1;
+    this.alpha2 = alpha2;
+    this.alpha3 = alpha3;
+    this.alpha4 = alpha4;
+  }
+
+  /**
+   * Forget the moves added
+   */
+  public void reset()
+  {
+    dx = dy = dHeading = 0;
+    rot1 = trans = rot2 = 0;
+    moves = 0;
+  }
+
+  /**
+   * Return the number of moves added since the last reset
+   */
+  public int getMoves()
+  {
+    return moves;
+  }
+
+  public void add(Move move)
+  {
+    add(move.getMoveType(), move.getDistanceTraveled(), move.getAngleTurned());
+  }
+
+  public void add(SensorRecord r)
+  {
+    add((r.type == SensorRecord.TRAVEL) ? Move.MoveType.TRAVEL : Move.MoveType.ROTATE,
+        r.distance, r.angle);
+  }
+
+  /**
+   * Add a move after the moves added so far
+   * 
+   * A TRAVEL or ROTATE is taken as the distance travelled straight ahead
+   * followed by the angle turned, as ParticleSet.applyMove does without a
+   * model, so the angle reported with a TRAVEL is not lost.
+   * 
+   * @param type TRAVEL, ROTATE or ARC; other moves are ignored
+   * @param distance the distance travelled, along the arc for an ARC
+   * @param angle the angle turned, in degrees
+   */
+  public void add(Move.MoveType type, float distance, float angle)
+  {
+    float mx, my, mh;
+    switch (type)
+    {
+      case TRAVEL:
+      case ROTATE:
+        mx = distance; my = 0; mh = angle;
+        break;
+      case ARC:
+        // The chord of the arc, turning left for a positive angle
+        double a = Math.toRadians(angle);
+        if (Math.abs(a) < 1e-6)
+        {
+          mx = distance; my = 0;
+        }
+        else
+        {
+          mx = (float) (distance * Math.sin(a) / a);
+          my = (float) (distance * (1 - Math.cos(a)) / a);
+        }
+        mh = angle;
+        break;
+      default:
+        return;
+    }
+
+    float c = Trig.cos(dHeading), s = Trig.sin(dHeading);
+    dx += c * mx - s * my;
+    dy += s * mx + c * my;
+    dHeading += mh;
+    moves++;
+    decompose();
+  }
+
+  private void decompose()
+  {
+    trans = (float) Math.hypot(dx, dy);
+    if (trans < MIN_TRANSLATION)
+    {
+      trans = 0;
+      rot1 = 0;
+    }
+    else
+    {
+      rot1 = (float) Math.toDegrees(Math.atan2(dy, dx));
+      if (rot1 > 90 || rot1 < -90)
+      { // Backwards
+        trans = -trans;
+        rot1 += (rot1 > 0) ? -180 : 180;
+      }
+    }
+    rot2 = dHeading - rot1;
+  }
+
+  /** The first rotation, in degrees */
+  public float getRotation1()
+  {
+    return rot1;
+  }
+
+  /** The translation, negative backwards */
+  public float getTranslation()
+  {
+    return trans;
+  }
+
+  /** The second rotation, in degrees */
+  public float getRotation2()
+  {
+    return rot2;
+  }
+
+  /** The standard deviation of the first rotation */
+  public float getSigmaRotation1()
+  {
+    return (float) Math.sqrt(alpha1 * rot1 * rot1 + alpha2 * trans * trans);
+  }
+
+  /** The standard deviation of the translation */
+  public float getSigmaTranslation()
+  {
+    return (float) Math.sqrt(alpha3 * trans * trans + alpha4 * (rot1 * rot1 + rot2 * rot2));
+  }
+
+  /** The standard deviation of the second rotation */
+  public float getSigmaRotation2()
+  {
+    return (float) Math.sqrt(alpha1 * rot2 * rot2 + alpha2 * trans * trans);
+  }
+}
@@ -3,7 +3,6 @@ import java.util.Random;
 
 import lejos.robotics.navigation.Move;
 import lejos.robotics.navigation.Pose;
-import lejos.geom.*;
 import java.awt.Color;
 
 /**
@@ -25,7 +24,8 @@ public class Particle
   private static Random rand = new Random();
   private Pose pose;
   private float weight = 1;
-  private int blackWhiteThreshold = 500;
+  static final int BLACK_WHITE_THRESHOLD = 500;
+  private int blackWhiteThreshold = BLACK_WHITE_THRESHOLD;
 
   /**
    * Create a particle with a specific pose
@@ -74,24 +74,38 @@ public class Particle
    */
   public void calculateWeight(int lightValue, Map m) 
   {
-	  if ( m.getColor(pose) == Color.BLACK )
+	  weight = weight(m.getColor(pose), lightValue, blackWhiteThreshold);
+  }
+
+  /**
+   * The weight of a particle on a tile of color c when the light sensor
+   * reads lightValue.
+   * 
+   * @param c the color of the tile under the particle
+   * @param lightValue the light sensor reading
+   * @param threshold the light value separating black from white
+   * @return the weight
+   */
+  static float weight(Color c, int lightValue, int threshold)
+  {
+	  if ( c == Color.BLACK )
 	  {
-		  if ( lightValue < blackWhiteThreshold) 
-			  weight = 0.9f;
+		  if ( lightValue < threshold) 
+			  return 0.9f;
 		  else
-			  weight = 0.1f;
+			  return 0.1f;
 	  }
 	  else 
 	  {
-		  if ( m.getColor(pose) == Color.WHITE )
+		  if ( c == Color.WHITE )
 		  {
-			  if ( lightValue > blackWhiteThreshold) 
-				  weight = 0.1f;
+			  if ( lightValue > threshold) 
+				  return 0.1f;
 			  else
-				  weight = 0.9f;
+				  return 0.9f;
 		  }
 		  else // outside the map
-			  weight = 0.0f;
+			  return 0.0f;
 		  
 	  }	  
   }
@@ -104,17 +118,14 @@ public class Particle
    */
   public void applyMove(Move move, float distanceNoiseFactor, float angleNoiseFactor) 
   {
+    float heading = pose.getHeading();
+    float ym = move.getDistanceTraveled() * Trig.sin(heading);
+    float xm = move.getDistanceTraveled() * Trig.cos(heading);
     
-    float ym = (move.getDistanceTraveled() * ((float) Math.sin(Math.toRadians(pose.getHeading()))));
-    float xm = (move.getDistanceTraveled() * ((float) Math.cos(Math.toRadians(pose.getHeading()))));
-
-
-    pose.setLocation(new Point(
+    pose.setLocation(
     		         (float) (pose.getX() + xm + (distanceNoiseFactor * xm * rand.nextGaussian())),
-                     (float) (pose.getY() + ym + (distanceNoiseFactor * ym * rand.nextGaussian()))));
-    pose.setHeading(
-       (float) (pose.getHeading() + move.getAngleTurned() + (angleNoiseFactor  * rand.nextGaussian())));
-    pose.setHeading((float) ((int) (pose.getHeading() + 0.5f) % 360));
-
+                     (float) (pose.getY() + ym + (distanceNoiseFactor * ym * rand.nextGaussian())));
+    pose.setHeading(Trig.normalize(
+       (float) (heading + move.getAngleTurned() + (angleNoiseFactor  * rand.nextGaussian()))));
   }
 }
@@ -0,0 +1,415 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A grid hash over the positions of a set of particles. The plane is cut
+ * into square cells of cellSize x cellSize, and the occupied cells are kept
+ * in an open addressing hash table of packed cell coordinates, so the size
+ * of the index depends on the number of particles, not on the size of the
+ * map. The particles are sorted by cell with a counting sort, so each cell
+ * is a range of the particle order.
+ * 
+ * Building the index is one pass to find the cells and one to sort the
+ * particles; all arrays are kept between builds, so rebuilding after each
+ * update allocates nothing once the index has grown to the size of the set.
+ * 
+ * A region query visits only the cells overlapping the region, so it costs
+ * O(k) for k particles found, plus the number of cells in the region.
+ * 
+ * cluster groups neighbouring occupied cells (8-connected) into hypotheses,
+ * like density based clustering with the cell as neighbourhood, and
+ * returns the pose statistics of each group. A multimodal distribution,
+ * e.g. with the robot on one of several similar black tiles, gives one
+ * hypothesis per mode instead of one box around them all. The cells only
+ * look at x and y, so each group is split again by heading into sectors
+ * of 90 degrees: particles on the same tile facing opposite ways are two
+ * hypotheses, not one with a meaningless mean heading.
+ */
+public class ParticleIndex
+{
+  private static final int SECTORS = 4; // heading sectors of a hypothesis
+
+  private float cellSize, invCellSize;
+
+  // The particles indexed
+  private float[] x, y, heading, weight;
+  private int n;
+  private boolean weighted;
+  private double totalWeight;
+
+  // Hash table of occupied cells, cleared by bumping the stamp
+  private long[] keys;
+  private int[] stamps, slotCell;
+  private int stamp, mask;
+
+  // Occupied cells
+  private int cells;
+  private int[] cellX, cellY, cellStart;
+  private double[] cellWeight;
+
+  // Particles sorted by cell
+  private int[] particleCell, order;
+
+  // Clustering
+  private int[] root;
+
+  /**
+   * Create an index
+   * 
+   * @param cellSize the size of a cell in x and y
+   */
+  public ParticleIndex(float cellSize)
+  {
+    setCellSize(cellSize);
+  }
+
+  /**
+   * Set the size of a cell; takes effect at the next build
+   */
+  public void setCellSize(float cellSize)
+  {
+    this.cellSize = cellSize;
+    invCellSize = 1 / cellSize;
+  }
+
+  public float getCellSize()
+  {
+    return cellSize;
+  }
+
+  /**
+   * Index the first n particles of the arrays. The arrays are kept, not
+   * copied, so the index is valid until they change.
+   * 
+   * If all weights are 0 the particles are weighed equally.
+   */
+  public void build(float[] x, float[] y, float[] heading, float[] weight, int n)
+  {
+    this.x = x;
+    this.y = y;
+    this.heading = heading;
+    this.weight = weight;
+    this.n = n;
+    ensureCapacity(n);
+
+    totalWeight = 0;
+    for (int i = 0; i < n; i++) totalWeight += weight[i];
+    weighted = totalWeight > 0;
+    if (!weighted) totalWeight = n;
+
+    // Find the cell of every particle
+    if (++stamp == 0)
+    { // Wrapped around; clear the stamps for real
+      java.util.Arrays.fill(stamps, 0);
+      stamp = 1;
+    }
+    cells = 0;
+    for (int i = 0; i < n; i++)
+    {
+      int cx = (int) Math.floor(x[i] * invCellSize);
+      int cy = (int) Math.floor(y[i] * invCellSize);
+      int slot = slot(cx, cy);
+      int c;
+      if (stamps[slot] != stamp)
+      {
+        c = cells++;
+        stamps[slot] = stamp;
+        keys[slot] = key(cx, cy);
+        slotCell[slot] = c;
+        cellX[c] = cx;
+        cellY[c] = cy;
+        cellStart[c] = 0;
+        cellWeight[c] = 0;
+      }
+      else
+      {
+        c = slotCell[slot];
+      }
+      particleCell[i] = c;
+      cellStart[c]++;
+      cellWeight[c] += weight(i);
+    }
+
+    // Counting sort of the particles by cell
+    int sum = 0;
+    for (int c = 0; c < cells; c++)
+    {
+      int count = cellStart[c];
+      cellStart[c] = sum;
+      sum += count;
+    }
+    for (int i = 0; i < n; i++)
+    {
+      order[cellStart[particleCell[i]]++] = i;
+    }
+    for (int c = cells; c > 0; c--) cellStart[c] = cellStart[c - 1];
+    cellStart[0] = 0;
+  }
+
+  private void ensureCapacity(int n)
+  {
+    if (order != null && order.length >= n) return;
+    int capacity = Integer.highestOneBit(Math.max(2 * n - 1, 1)) << 1;
+    keys = new long[capacity];
+    stamps = new int[capacity];
+    slotCell = new int[capacity];
+    mask = capacity - 1;
+    stamp = 0;
+    cellX = new int[n];
+    cellY = new int[n];
+    cellStart = new int[n + 1];
+    cellWeight = new double[n];
+    root = new int[n];
+    particleCell = new int[n];
+    order = new int[n];
+  }
+
+  private static long key(int cx, int cy)
+  {
+    return ((long) cx << 32) | (cy & 0xffffffffL);
+  }
+
+  /**
+   * Return the slot of a cell, occupied or the free slot it would take
+   */
+  private int slot(int cx, int cy)
+  {
+    long key = key(cx, cy);
+    int slot = (int) (key ^ (key >>> 29) ^ (key >>> 47)) * 0x9e3779b9 & mask;
+    while (stamps[slot] == stamp && keys[slot] != key) slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  /**
+   * Return the occupied cell at cell coordinates (cx, cy), or -1
+   */
+  private int findCell(int cx, int cy)
+  {
+    int slot = slot(cx, cy);
+    return stamps[slot] == stamp ? slotCell[slot] : -1;
+  }
+
+  private float weight(int i)
+  {
+    return weighted ? weight[i] : 1;
+  }
+
+  /**
+   * Return the number of particles indexed
+   */
+  public int size()
+  {
+    return n;
+  }
+
+  /**
+   * Return the number of occupied cells
+   */
+  public int getCells()
+  {
+    return cells;
+  }
+
+  /**
+   * Return the sum of the weights of the particles indexed
+   */
+  public double getTotalWeight()
+  {
+    return totalWeight;
+  }
+
+  /**
+   * Find the particles in the rectangle from (minX, minY) to (maxX, maxY),
+   * edges included.
+   * 
+   * @param out receives the indices of the particles found, as far as it
+   *   has room for them
+   * @return the number of particles found, which may exceed out.length
+   */
+  public int query(float minX, float minY, float maxX, float maxY, int[] out)
+  {
+    int cx0 = (int) Math.floor(minX * invCellSize);
+    int cy0 = (int) Math.floor(minY * invCellSize);
+    int cx1 = (int) Math.floor(maxX * invCellSize);
+    int cy1 = (int) Math.floor(maxY * invCellSize);
+    int found = 0;
+
+    if ((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cells)
+    { // A large region; visiting the occupied cells is cheaper
+      for (int c = 0; c < cells; c++)
+      {
+        if (cellX[c] >= cx0 && cellX[c] <= cx1 && cellY[c] >= cy0 && cellY[c] <= cy1)
+          found = collect(c, minX, minY, maxX, maxY, out, found);
+      }
+      return found;
+    }
+
+    for (int cy = cy0; cy <= cy1; cy++)
+    {
+      for (int cx = cx0; cx <= cx1; cx++)
+      {
+        int c = findCell(cx, cy);
+        if (c >= 0) found = collect(c, minX, minY, maxX, maxY, out, found);
+      }
+    }
+    return found;
+  }
+
+  private int collect(int c, float minX, float minY, float maxX, float maxY, int[] out, int found)
+  {
+    for (int k = cellStart[c]; k < cellStart[c + 1]; k++)
+    {
+      int i = order[k];
+      if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY)
+      {
+        if (found < out.length) out[found] = i;
+        found++;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Return the weight of the particles in the rectangle from (minX, minY)
+   * to (maxX, maxY), edges included
+   */
+  public double weightIn(float minX, float minY, float maxX, float maxY)
+  {
+    double sum = 0;
+    int cx0 = (int) Math.floor(minX * invCellSize);
+    int cy0 = (int) Math.floor(minY * invCellSize);
+    int cx1 = (int) Math.floor(maxX * invCellSize);
+    int cy1 = (int) Math.floor(maxY * invCellSize);
+    for (int c = 0; c < cells; c++)
+    {
+      if (cellX[c] < cx0 || cellX[c] > cx1 || cellY[c] < cy0 || cellY[c] > cy1) continue;
+      for (int k = cellStart[c]; k < cellStart[c + 1]; k++)
+      {
+        int i = order[k];
+        if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY) sum += weight(i);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Group the particles into hypotheses of connected occupied cells and
+   * heading sectors, centred on 0, 90, 180 and 270 degrees, and return the
+   * k heaviest, heaviest first. Cells with less than minWeight of the
+   * total weight are left out, so stray particles do not bridge two
+   * modes.
+   * 
+   * @param k the largest number of hypotheses to return
+   * @param minWeight the smallest fraction of the total weight in a cell
+   * @return the pose statistics of the hypotheses; getWeight divided by
+   *   getTotalWeight is the probability of a hypothesis
+   */
+  public List<PoseStatistics> cluster(int k, double minWeight)
+  {
+    if (k <= 0 || cells == 0) return new ArrayList<PoseStatistics>();
+    double threshold = minWeight * totalWeight;
+    for (int c = 0; c < cells; c++) root[c] = cellWeight[c] >= threshold ? c : -1;
+
+    // Union the dense cells with their dense neighbours
+    for (int c = 0; c < cells; c++)
+    {
+      if (root[c] < 0) continue;
+      union(c, findCell(cellX[c] + 1, cellY[c]));
+      union(c, findCell(cellX[c] - 1, cellY[c] + 1));
+      union(c, findCell(cellX[c], cellY[c] + 1));
+      union(c, findCell(cellX[c] + 1, cellY[c] + 1));
+    }
+
+    // Total weight of each hypothesis, at the root of its cluster and its
+    // heading sector
+    int groups = cells * SECTORS;
+    double[] groupWeight = new double[groups];
+    boolean[] occupied = new boolean[groups];
+    for (int c = 0; c < cells; c++)
+    {
+      if (root[c] < 0) continue;
+      int g0 = find(c) * SECTORS;
+      for (int q = cellStart[c]; q < cellStart[c + 1]; q++)
+      {
+        int i = order[q];
+        int g = g0 + sector(heading[i]);
+        groupWeight[g] += weight(i);
+        occupied[g] = true;
+      }
+    }
+
+    // Pick the k heaviest hypotheses
+    int m = Math.min(k, groups);
+    int[] top = new int[m];
+    double[] topWeight = new double[m];
+    int found = 0;
+    for (int c = 0; c < groups; c++)
+    {
+      if (!occupied[c]) continue;
+      double w = groupWeight[c];
+      if (found < m) found++;
+      else if (w <= topWeight[m - 1]) continue;
+      int j = found - 1;
+      while (j > 0 && topWeight[j - 1] < w)
+      {
+        top[j] = top[j - 1];
+        topWeight[j] = topWeight[j - 1];
+        j--;
+      }
+      top[j] = c;
+      topWeight[j] = w;
+    }
+
+    // Collect the statistics of the particles in the picked clusters
+    int[] rank = new int[groups];
+    java.util.Arrays.fill(rank, -1);
+    List<PoseStatistics> result = new ArrayList<PoseStatistics>(found);
+    for (int j = 0; j < found; j++)
+    {
+      rank[top[j]] = j;
+      result.add(new PoseStatistics());
+    }
+    for (int c = 0; c < cells; c++)
+    {
+      if (root[c] < 0) continue;
+      int g0 = find(c) * SECTORS;
+      for (int q = cellStart[c]; q < cellStart[c + 1]; q++)
+      {
+        int i = order[q];
+        int j = rank[g0 + sector(heading[i])];
+        if (j >= 0) result.get(j).add(x[i], y[i], heading[i], weight(i));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Return the heading sector of a heading in degrees, 0 for -45 to 45
+   */
+  private static int sector(float heading)
+  {
+    return (int) Math.floor((heading + 45) / 90) & (SECTORS - 1);
+  }
+
+  private int find(int c)
+  {
+    while (root[c] != c)
+    {
+      root[c] = root[root[c]];
+      c = root[c];
+    }
+    return c;
+  }
+
+  private void union(int a, int b)
+  {
+    if (b < 0 || root[b] < 0) return;
+    a = find(a);
+    b = find(b);
+    if (a != b)
+    {
+      if (a < b) root[b] = a;
+      else root[a] = b;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+
+/**
+ * A small splittable random number generator (SplitMix64, the algorithm
+ * behind java.util.SplittableRandom) that can be reseeded in place.
+ * 
+ * ParticleSet keeps one per chunk of particles and reseeds them from its
+ * master generator before each parallel update, so every chunk has its own
+ * independent stream and the result for a given seed does not depend on
+ * how the chunks are scheduled on threads. Reseeding in place means no
+ * generator is allocated per update.
+ * 
+ * Normal values come from the ziggurat method (Marsaglia and Tsang 2000,
+ * with the layers of Doornik 2005): nearly always one 64 bit draw, a table
+ * lookup and a multiplication, and no logarithm or square root.
+ */
+public class ParticleRandom
+{
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  // Ziggurat of 128 layers of equal area V; R is the start of the tail
+  private static final int LAYERS = 128;
+  private static final double R = 3.442619855899;
+  private static final double V = 9.91256303526217e-3;
+  private static final double[] X = new double[LAYERS + 1];
+  private static final double[] RATIO = new double[LAYERS];
+
+  static
+  {
+    double f = Math.exp(-0.5 * R * R);
+    X[0] = V / f;
+    X[1] = R;
+    X[LAYERS] = 0;
+    for (int i = 2; i < LAYERS; i++)
+    {
+      X[i] = Math.sqrt(-2 * Math.log(V / X[i - 1] + f));
+      f = Math.exp(-0.5 * X[i] * X[i]);
+    }
+    for (int i = 0; i < LAYERS; i++) RATIO[i] = X[i + 1] / X[i];
+  }
+
+  private long seed;
+
+  public ParticleRandom(long seed)
+  {
+    setSeed(seed);
+  }
+
+  /**
+   * Restart the generator from a new seed
+   * 
+   * @param seed the seed
+   */
+  public void setSeed(long seed)
+  {
+    this.seed = seed;
+  }
+
+  public long nextLong()
+  {
+    long z = (seed += GOLDEN_GAMMA);
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Return a uniformly distributed value in [0, 1)
+   * 
+   * @return the value
+   */
+  public double nextDouble()
+  {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * Return a normally distributed value with mean 0 and standard deviation 1,
+   * using the ziggurat method
+   * 
+   * @return the value
+   */
+  public double nextGaussian()
+  {
+    while (true)
+    {
+      // The low 7 bits pick the layer, the high 53 bits the position
+      long bits = nextLong();
+      int i = (int) bits & (LAYERS - 1);
+      double u = 2 * ((bits >>> 11) * 0x1.0p-53) - 1;
+      if (Math.abs(u) < RATIO[i]) return u * X[i];
+      if (i == 0) return tail(u < 0);
+
+      // In the wedge between the layer and the density
+      double x = u * X[i];
+      double f0 = Math.exp(-0.5 * (X[i] * X[i] - x * x));
+      double f1 = Math.exp(-0.5 * (X[i + 1] * X[i + 1] - x * x));
+      if (f1 + nextDouble() * (f0 - f1) < 1) return x;
+    }
+  }
+
+  /**
+   * Return a value from the tail beyond R (Marsaglia 1964)
+   */
+  private double tail(boolean negative)
+  {
+    double x, y;
+    do {
+      x = Math.log(1 - nextDouble()) / R;
+      y = Math.log(1 - nextDouble());
+    } while (-2 * y < x * x);
+    return negative ? x - R : R - x;
+  }
+
+  /**
+   * Fill out[from] to out[to - 1] with normally distributed values
+   * 
+   * @param out the array to fill
+   * @param from the first index to fill
+   * @param to the index after the last one to fill
+   */
+  public void nextGaussians(float[] out, int from, int to)
+  {
+    for (int i = from; i < to; i++) out[i] = (float) nextGaussian();
+  }
+}
@@ -2,12 +2,55 @@
 import lejos.robotics.navigation.Move;
 import lejos.robotics.navigation.Pose;
 import java.awt.Rectangle;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Represents a particle set for the particle filtering algorithm.
  * 
  * This is a version of the leJOS class MCLParticles with the particles
  * generated within a 2D map of black/white tiles. 
+ *
+ * The particles are kept as a structure of arrays: parallel float arrays
+ * for x, y, heading and weight. A second set of arrays is used as the
+ * target of resampling, after which the two sets are swapped. In this way
+ * a motion update, a sensor update and a resampling step allocate nothing.
+ *
+ * The motion and sensor updates work on fixed size chunks of particles.
+ * The chunks can be run in parallel on a ForkJoinPool, see setParallel.
+ * Each chunk draws its noise from its own generator, reseeded from the
+ * seed of the set before every motion update, so for a given seed the
+ * result is the same whether the chunks run sequentially or in parallel.
+ *
+ * The pose statistics are collected by each chunk during the updates and
+ * resampling and merged in chunk order, so getPose and the spread of the
+ * particles come without an extra pass over the set. They are kept until
+ * the particles next change.
+ *
+ * The weights accumulate across sensor updates: each update multiplies
+ * the weight of a particle by the likelihood of the reading. With a
+ * resample threshold below 1 the set is only resampled when the effective
+ * sample size of the weights falls below that fraction of the particles,
+ * see setResampleThreshold, so particles are not thrown away while the
+ * readings hardly tell them apart.
+ *
+ * So that many readings can be multiplied without underflow, a sensor
+ * update adds log likelihoods to log weights. The same pass collects the
+ * statistics with each chunk weighing its particles relative to its own
+ * highest log weight so far (an online log-sum-exp), and the chunks are
+ * brought to a common offset when they are merged. The float weights,
+ * exp(log weight - offset), are only computed again when something reads
+ * them; the offset stays 0 unless the weights would underflow, so with
+ * resampling after every update they are the likelihoods themselves.
+ *
+ * With recovery on, see setRecovery, the set follows Augmented MCL: short
+ * and long term averages of the likelihood of the light readings are
+ * kept, and when the short term average drops below the long term one a
+ * matching fraction of the particles is replaced at resampling by random
+ * particles on tiles that agree with the last light reading.
  * 
  * @author  Ole Caprani
  * @version 22.05.15
@@ -16,7 +59,8 @@ import java.awt.Rectangle;
 public class ParticleSet
 {
   // Constants
-  private static final float BIG_FLOAT = 10000f;
+  private static final int CHUNK_SIZE = 4096;
+  private static final float LOG_RANGE = 40; // e^-40 is still far from underflow
   
   // Static variables
   public static int maxIterations = 100;
@@ -24,13 +68,39 @@ public class ParticleSet
   // Instance variables
   private float distanceNoiseFactor = 0.02f;
   private float angleNoiseFactor = 1f;
+  private float resampleThreshold = 1;
+  private boolean resampled;
+  private float alphaSlow, alphaFast;
+  private double wSlow, wFast;
+  private SensorModel lastModel;
+  private int lastRow;
+  private AliasTable tileSampler = new AliasTable();
+  private double[] tileWeights = new double[0];
   private int numParticles;
-  private Particle[] particles;
+  private float[] x, y, heading, weight;
+  private float[] nextX, nextY, nextHeading, nextWeight;
+  private float[] logWeight, nextLogWeight;
+  private float[] chunkMax;
+  private double logOffset, logLikelihood, totalBefore;
+  private boolean weightsValid;
   private Map map;
+  private double[] cumulative;
+  private int[] parent;
+  private Resampler resampler = new SystematicResampler();
+  private KLDSampler kld;
+  private SensorModel sensorModel, legacyModel;
+  private OdometryMotionModel motionModel;
+  private FilterMetrics metrics;
+  private SplittableRandom seeds;
+  private Random rand;
+  private ParticleRandom[] chunkRand;
+  private PoseStatistics[] chunkStats;
+  private PoseStatistics stats = new PoseStatistics();
+  private boolean statsValid;
+  private ParticleIndex index;
+  private boolean indexValid;
+  private ForkJoinPool pool;
   private int _iterations;   
-  private float _x, _y, _heading;
-  private float minX, maxX, minY, maxY;
-  private double varX, varY, varH;
   
   
   /**
@@ -39,8 +109,19 @@ public class ParticleSet
    */
   public Pose getPose()
   {
-    estimatePose();
-    return new Pose(_x, _y, _heading);
+    PoseStatistics s = getStatistics();
+    return new Pose(s.getMeanX(), s.getMeanY(), s.getMeanHeading());
+  }
+
+  /**
+   * Returns the statistics of the particle poses, collected during the
+   * last update of the particles
+   * @return the pose statistics
+   */
+  public PoseStatistics getStatistics()
+  {
+    if (!statsValid) estimatePose();
+    return stats;
   }
   
   /**
@@ -49,32 +130,119 @@ public class ParticleSet
    * @param map the map of the enclosed environment
    */
   public ParticleSet(int numParticles, Map m)
+  {
+    this(numParticles, m, new Random().nextLong());
+  }
+
+  /**
+   * Create a set of particles with reproducible random numbers.
+   *
+   * @param map the map of the enclosed environment
+   * @param seed the seed of all random numbers used by the set
+   */
+  public ParticleSet(int numParticles, Map m, long seed)
   {
     this.numParticles = numParticles;
     map = m;
-    particles = new Particle[numParticles];    
+    seeds = new SplittableRandom(seed);
+    rand = new Random(seeds.nextLong());
+    ensureCapacity(numParticles);
+    generateParticles();
+  }
+
+  /**
+   * Make room for at least capacity particles, keeping the current ones
+   */
+  private void ensureCapacity(int capacity)
+  {
+    if (x != null && x.length >= capacity) return;
+    x = grow(x, capacity);
+    y = grow(y, capacity);
+    heading = grow(heading, capacity);
+    weight = grow(weight, capacity);
+    logWeight = grow(logWeight, capacity);
+    nextX = new float[capacity];
+    nextY = new float[capacity];
+    nextHeading = new float[capacity];
+    nextWeight = new float[capacity];
+    nextLogWeight = new float[capacity];
+    cumulative = new double[capacity];
+    parent = new int[capacity];
+    int chunks = (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    ParticleRandom[] r = new ParticleRandom[chunks];
+    for (int c = 0; c < chunks; c++)
+      r[c] = (chunkRand != null && c < chunkRand.length) ? chunkRand[c] : new ParticleRandom(0);
+    chunkRand = r;
+    PoseStatistics[] s = new PoseStatistics[chunks];
+    for (int c = 0; c < chunks; c++)
+      s[c] = (chunkStats != null && c < chunkStats.length) ? chunkStats[c] : new PoseStatistics();
+    chunkStats = s;
+    chunkMax = new float[chunks];
+  }
+
+  private static float[] grow(float[] a, int capacity)
+  {
+    float[] b = new float[capacity];
+    if (a != null) System.arraycopy(a, 0, b, 0, a.length);
+    return b;
+  }
+
+  private void generateParticle(float[] px, float[] py, float[] ph, int i)
+  {
+	int width = map.getWidth(), dimX = map.getDimX();
+	int sizeX = dimX*width;
+	int sizeY = map.getDimY()*width;
+
+	// Generate a particle with a location (x,y) randomly chosen within the
+	// 2D area of the map, or within a tile drawn by prepareTiles. The
+	// heading can be chosen as suggested in several different ways.
+	if (tileSampler.size() == 0)
+	{
+	  px[i] = (float)(rand.nextDouble()*sizeX);
+	  py[i] = (float)(rand.nextDouble()*sizeY);
+	}
+	else
+	{
+	  int tile = map.randomTile(tileSampler.sample(rand), rand);
+	  px[i] = (tile % dimX + rand.nextFloat())*width;
+	  py[i] = (tile / dimX + rand.nextFloat())*width;
+	}
+	//ph[i] = (float)(rand.nextDouble()*360);
+	ph[i] = (float)(rand.nextInt(2)*180);
+	//ph[i] = 0;
+  }
+
+  /**
+   * Generate all particles anew, with equal weights
+   */
+  private void generateParticles()
+  {
     for (int i = 0; i < numParticles; i++) 
     {
-     particles[i] =  generateParticle(map);     
+      generateParticle(x, y, heading, i);
+      weight[i] = 1;
+      logWeight[i] = 0;
     }
+    logOffset = 0;
+    weightsValid = true;
+    statsValid = false;
+    indexValid = false;
   }
   
-  private Particle generateParticle(Map m)
+  /**
+   * Generate all particles anew on tiles that agree with a light reading,
+   * e.g. for a global localization that starts from the first reading.
+   * A tile is drawn in proportion to the likelihood of the reading on it,
+   * so on a map with few dark tiles a dark reading puts the particles on
+   * those tiles only.
+   *
+   * @param lightValue the light value read
+   */
+  public void generateParticles(int lightValue)
   {
-	int sizeX = m.getDimX()*m.getWidth();
-	int sizeY = m.getDimY()*m.getWidth();
-	
-	// Generate a particle with a location (x,y) randomly chosen within the
-	// 2D area of the map. The heading can be chosen as suggested in several
-	// different ways.
-	Particle p = new Particle(new Pose(
-   		 (float)(Math.random()*sizeX), (float)(Math.random()*sizeY), 
-   		 //(float)(Math.random()*360)));
-   		 (float)((int)(Math.random()*2)*180)));
-   		 //0));
-     p.setWeight(1);
-     
-     return p;
+    SensorModel model = getSensorModel(map);
+    prepareTiles(model, model.row(lightValue));
+    generateParticles();
   }
 
   /**
@@ -88,14 +256,35 @@ public class ParticleSet
   }
 
   /**
-   * Get a specific particle
+   * Get a specific particle. The particle is a copy of the current
+   * state of particle i; changing it does not change the set.
    *
    * @param i the index of the particle
    * @return the particle
    */
   public Particle getParticle(int i) 
   {
-    return particles[i];
+    updateWeights();
+    Particle p = new Particle(new Pose(x[i], y[i], heading[i]));
+    p.setWeight(weight[i]);
+    return p;
+  }
+
+  /**
+   * Copy the positions and weights of all particles, e.g. for display
+   *
+   * @param px receives the x of each particle
+   * @param py receives the y of each particle
+   * @param pw receives the weight of each particle
+   * @return the number of particles copied
+   */
+  public int copyParticles(float[] px, float[] py, float[] pw)
+  {
+    updateWeights();
+    System.arraycopy(x, 0, px, 0, numParticles);
+    System.arraycopy(y, 0, py, 0, numParticles);
+    System.arraycopy(weight, 0, pw, 0, numParticles);
+    return numParticles;
   }
 
 
@@ -103,86 +292,750 @@ public class ParticleSet
    * Resample the set picking those with higher weights.
    *
    * Note that the new set has multiple instances of the particles with higher
-   * weights.
+   * weights. The particles are selected by the resampling strategy, see
+   * setResampler.
+   *
+   * With a resample threshold below 1 the set is left as it is while the
+   * effective sample size is at least the threshold times the number of
+   * particles and no random particles are due, see wasResampled.
    *
    * @return true iff lost
    */
   
   public boolean resample() 
   {
-	    // Rename particles as oldParticles and create a new set
-	    Particle[] oldParticles = particles;
-	    particles = new Particle[numParticles];
-
-	    // Continually pick a random number and select the particles with
-	    // weights greater than or equal to it until we have a full
-	    // set of particles.
-	    int count = 0;
-	    int iterations = 0;
-
-	    while (count < numParticles) 
-	    {
-	      iterations++;
-	      if (iterations >= maxIterations) 
-	      {
-	        System.out.println("Lost: count = " + count);
-	        if (count > 0) { // Duplicate the ones we have so far
-	          for (int i = count; i < numParticles; i++) 
-	          {
-	            particles[i] = new Particle(particles[i % count].getPose());
-	            particles[i].setWeight(particles[i % count].getWeight());
-	          }
-	          return false;
-	        } else 
-	          { // Completely lost - generate a new set of particles
-	          for (int i = 0; i < numParticles; i++) 
-	          {
-	            particles[i] = generateParticle(map);
-	          }
-	          return true;
-	        }
-	      }
-	      float rand = (float) Math.random();
-	      for (int i = 0; i < numParticles && count < numParticles; i++) {
-	        if (oldParticles[i].getWeight() >= rand) {
-	          Pose p = oldParticles[i].getPose();
-	          float x = p.getX();
-	          float y = p.getY();
-	          float angle = p.getHeading();
-
-	          // Create a new instance of the particle and set its weight
-	          particles[count] = new Particle(new Pose(x, y, angle));
-	          particles[count++].setWeight(1);
-	        }
-	      }
-	    }
-	    _iterations = iterations;
-	    return false;
-	  }
-
-
-  /**
-   * Calculate the weight for each particle
+    long start = (metrics != null) ? System.nanoTime() : 0;
+    if (resampleThreshold < 1)
+    {
+      PoseStatistics s = getStatistics();
+      double ess = s.getEffectiveSize();
+      if (s.getWeight() > 0 && ess >= resampleThreshold * numParticles && getRandomFraction() == 0)
+      {
+        resampled = false;
+        if (metrics != null)
+        {
+          metrics.record(FilterMetrics.RESAMPLE, System.nanoTime() - start);
+          metrics.skipped(ess);
+        }
+        return false;
+      }
+    }
+
+    resampled = true;
+    double total = 0, squares = 0;
+    for (int i = 0; i < numParticles; i++)
+    {
+      float w = weightOf(i);
+      total += w;
+      squares += w * w;
+      cumulative[i] = total;
+    }
+    weightsValid = true;
+
+    boolean lost = (kld != null) ? resampleKLD(total) : resampleSelected();
+    if (metrics != null)
+    {
+      metrics.record(FilterMetrics.RESAMPLE, System.nanoTime() - start);
+      metrics.resampled(_iterations, (squares > 0) ? total * total / squares : 0);
+      if (lost) metrics.lost();
+    }
+    return lost;
+  }
+
+  /**
+   * Set when to resample: only when the effective sample size of the
+   * weights, (sum w)^2 / sum w^2, is below threshold times the number of
+   * particles. A threshold of 1, the default, resamples at every call; 0.5
+   * is a common choice. LegacyResampler compares the weights themselves
+   * with random numbers, so it is meant for a threshold of 1.
+   *
+   * @param threshold the fraction of the particles, from 0 to 1
+   */
+  public void setResampleThreshold(float threshold)
+  {
+    if (!(threshold >= 0 && threshold <= 1))
+      throw new IllegalArgumentException("Resample threshold " + threshold);
+    resampleThreshold = threshold;
+  }
+
+  /**
+   * Return true if the last call of resample resampled the set, false if
+   * it was skipped
+   */
+  public boolean wasResampled()
+  {
+    return resampled;
+  }
+
+  /**
+   * Return the effective sample size of the current weights, from 1 when
+   * a single particle has all the weight to the number of particles when
+   * the weights are equal
+   */
+  public double getEffectiveSampleSize()
+  {
+    return getStatistics().getEffectiveSize();
+  }
+
+  /**
+   * Resample with the resampling strategy, after the cumulative weights
+   * are computed
+   *
+   * @return true iff lost
+   */
+  private boolean resampleSelected()
+  {
+    // Select fewer parents, evenly over the set, to make room for the
+    // random particles
+    int keep = numParticles - (int) Math.round(getRandomFraction() * numParticles);
+    int count = 0;
+    _iterations = 0;
+    if (keep > 0)
+    {
+      count = resampler.resample(weight, cumulative, numParticles, parent, keep, rand);
+      _iterations = resampler.getIterations();
+    }
+
+    boolean lost = false;
+    if (count < keep)
+    {
+      System.out.println("Lost: count = " + count);
+      if (count == 0)
+      {
+        // Completely lost - generate a new set of particles, on the tiles
+        // that agree with the last reading
+        if (alphaSlow == 0)
+        {
+          prepareTiles(lastModel, lastRow);
+          generateParticles();
+          return true;
+        }
+        lost = true;
+        keep = 0;
+      }
+    }
+
+    // Random particles follow the selected ones
+    final int kept = keep;
+    if (kept < numParticles) prepareTiles(lastModel, lastRow);
+    for (int i = kept; i < numParticles; i++)
+    {
+      generateParticle(nextX, nextY, nextHeading, i);
+      nextWeight[i] = 1;
+      nextLogWeight[i] = 0;
+    }
+
+    // Copy the selected particles, duplicating them if there are too few
+    final int selected = count;
+    forEachChunk(new ChunkOp() {
+      public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+      {
+        for (int i = from; i < to; i++)
+        {
+          if (i >= kept)
+          {
+            s.add(nextX[i], nextY[i], nextHeading[i], 1);
+            continue;
+          }
+          int p = parent[i % selected];
+          nextX[i] = x[p];
+          nextY[i] = y[p];
+          nextHeading[i] = heading[p];
+          nextWeight[i] = 1;
+          nextLogWeight[i] = 0;
+          s.add(x[p], y[p], heading[p], 1);
+        }
+      }
+    });
+    swap();
+    return lost;
+  }
+
+  /**
+   * Build the alias table that generateParticle draws tile ids from: each
+   * tile id weighed by the likelihood of a light reading on it times the
+   * number of its tiles. Without a reading, or when no tile agrees with
+   * it, the table is left empty and particles are drawn anywhere.
+   *
+   * @param model the sensor model of the reading, or null
+   * @param row the row of the reading in the model
+   */
+  private void prepareTiles(SensorModel model, int row)
+  {
+    int ids = (model != null) ? Math.min(model.getTileCount(), map.getTileCount()) : 0;
+    if (tileWeights.length < ids) tileWeights = new double[ids];
+    for (int id = 0; id < ids; id++)
+      tileWeights[id] = model.getTable()[row + id + 1] * (double) map.countTiles(id);
+    tileSampler.build(tileWeights, ids);
+  }
+
+  /**
+   * Turn on Augmented MCL: keep averages of the likelihood of the light
+   * readings with the rates alphaSlow and alphaFast, and at resampling
+   * replace the fraction 1 - wFast/wSlow of the particles with random
+   * particles on tiles that agree with the last reading, also with KLD
+   * sampling. When the set is lost it starts over from such particles
+   * too. Both averages start at the likelihood of the first reading, so
+   * recovery works from the start instead of after about 1/alphaSlow
+   * readings. A rate of 0 turns recovery off, which is the default.
+   *
+   * @param alphaSlow the rate of the long term average, e.g. 0.001
+   * @param alphaFast the rate of the short term average, e.g. 0.1
+   */
+  public void setRecovery(float alphaSlow, float alphaFast)
+  {
+    if (!(alphaSlow >= 0 && alphaSlow < alphaFast && alphaFast <= 1) && !(alphaSlow == 0 && alphaFast == 0))
+      throw new IllegalArgumentException("Recovery rates " + alphaSlow + ", " + alphaFast);
+    this.alphaSlow = alphaSlow;
+    this.alphaFast = alphaFast;
+    wSlow = wFast = 0;
+  }
+
+  /**
+   * Return the fraction of the particles that the next resampling
+   * replaces with random particles, 0 without recovery
+   */
+  public double getRandomFraction()
+  {
+    if (alphaSlow == 0 || !(wSlow > 0)) return 0;
+    return Math.max(0, 1 - wFast / wSlow);
+  }
+
+  /**
+   * Resample with KLD-sampling: draw particles one at a time in proportion
+   * to their weights until the KLD sampler says there are enough for the
+   * number of occupied bins. The size of the set changes accordingly.
+   *
+   * With recovery on, each draw is a random particle instead with the
+   * probability getRandomFraction, and a lost set starts over from random
+   * particles only, as many as the KLD sampler asks for.
+   *
+   * @return true iff lost
+   */
+  private boolean resampleKLD(double total)
+  {
+    boolean lost = !(total > 0);
+    if (lost)
+    {
+      System.out.println("Lost: count = 0");
+      prepareTiles(lastModel, lastRow);
+      if (alphaSlow == 0)
+      { // Completely lost - generate a new set of particles
+        generateParticles();
+        return true;
+      }
+    }
+    double random = getRandomFraction();
+    if (random > 0 && !lost) prepareTiles(lastModel, lastRow);
+
+    kld.reset();
+    stats.reset();
+    int n = 0;
+    boolean more = true;
+    while (more)
+    {
+      if (lost || (random > 0 && rand.nextDouble() < random))
+      {
+        generateParticle(nextX, nextY, nextHeading, n);
+      }
+      else
+      {
+        int p = select(rand.nextDouble() * total);
+        nextX[n] = x[p];
+        nextY[n] = y[p];
+        nextHeading[n] = heading[p];
+      }
+      nextLogWeight[n] = 0;
+      nextWeight[n] = 1;
+      stats.add(nextX[n], nextY[n], nextHeading[n], 1);
+      n++;
+      more = kld.add(n, nextX[n - 1], nextY[n - 1], nextHeading[n - 1]);
+    }
+    numParticles = n;
+    statsValid = true;
+    _iterations = 1;
+    swap();
+    return lost;
+  }
+
+  /**
+   * Return the first particle whose cumulative weight exceeds u
+   */
+  private int select(double u)
+  {
+    int lo = 0, hi = numParticles - 1;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (cumulative[mid] <= u) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Let the number of particles adapt with KLD-sampling when resampling.
+   * This replaces the resampling strategy while set.
+   *
+   * @param kld the KLD sampler, or null to keep the number of particles fixed
+   */
+  public void setKLDSampling(KLDSampler kld)
+  {
+    this.kld = kld;
+    if (kld != null) ensureCapacity(kld.getMaxParticles());
+  }
+
+  /**
+   * Set the strategy used to select particles when resampling.
+   * The default is a SystematicResampler; a LegacyResampler gives the
+   * original algorithm.
+   *
+   * @param resampler the resampling strategy
+   */
+  public void setResampler(Resampler resampler)
+  {
+    this.resampler = resampler;
+  }
+
+  /**
+   * Make the resampled arrays the current particles and keep the old
+   * ones as the target of the next resampling. The resampled weights are
+   * all 1.
+   */
+  private void swap()
+  {
+    float[] t;
+    t = x; x = nextX; nextX = t;
+    t = y; y = nextY; nextY = t;
+    t = heading; heading = nextHeading; nextHeading = t;
+    t = weight; weight = nextWeight; nextWeight = t;
+    t = logWeight; logWeight = nextLogWeight; nextLogWeight = t;
+    logOffset = 0;
+    weightsValid = true;
+    indexValid = false;
+  }
+
+
+  /**
+   * Multiply the weight of each particle by the likelihood of the light
+   * value on the tile of the particle, see setSensorModel. The weights are
+   * 1 after resampling, so this sets them to the likelihood if the set is
+   * resampled after every update. With recovery on the reading also
+   * updates the likelihood averages, see setRecovery.
    * 
+   * @throws IllegalStateException if the sensor model was made for fewer
+   *         tile ids than the map has now, e.g. after a setColor with a
+   *         new color
    */
-  public void  calculateWeights(int lightValue, Map map)
+  public void  calculateWeights(final int lightValue, final Map map)
   {   
-    for (int i = 0; i < numParticles; i++)
+    long start = (metrics != null) ? System.nanoTime() : 0;
+    SensorModel model = getSensorModel(map);
+    if (model.getTileCount() != map.getTileCount())
+      throw new IllegalStateException(mismatch(model, map));
+    final float[] table = model.getLogTable();
+    final int row = model.row(lightValue) + 1;
+    final float shift = beginLogUpdate();
+    lastModel = model;
+    lastRow = row - 1;
+
+    forEachLogChunk(new ChunkOp() {
+      public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+      {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++)
+        {
+          float l = table[row + map.getTile(x[i], y[i])];
+          float lw = (l > SensorModel.LOG_ZERO) ? logWeight[i] - shift + l : Float.NEGATIVE_INFINITY;
+          logWeight[i] = lw;
+          max = addLog(s, i, lw, max);
+        }
+        chunkMax[from / CHUNK_SIZE] = max;
+      }
+    });
+    if (alphaSlow > 0)
+    {
+      // The likelihood of the reading, not relative to the best tile for it
+      double w = Math.exp(logLikelihood) * model.getRowScale(lastRow);
+      if (wSlow == 0) wSlow = wFast = w;
+      wSlow += alphaSlow * (w - wSlow);
+      wFast += alphaFast * (w - wFast);
+    }
+    if (metrics != null) metrics.record(FilterMetrics.CALCULATE_WEIGHTS, System.nanoTime() - start);
+  }
+
+  /**
+   * Multiply the weight of each particle by the likelihood of the readings
+   * of the range sensors, see RangeSensorModel. Call after calculateWeights
+   * when both kinds of readings are taken at the same pose.
+   *
+   * @param model the range sensor model
+   * @param ranges the range read by each beam of the model
+   */
+  public void calculateRangeWeights(final RangeSensorModel model, final float[] ranges)
+  {
+    long start = (metrics != null) ? System.nanoTime() : 0;
+    final float shift = beginLogUpdate();
+    forEachLogChunk(new ChunkOp() {
+      public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+      {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++)
+        {
+          float h = heading[i];
+          float lw = logWeight[i] - shift + model.logLikelihood(x[i], y[i], Trig.cos(h), Trig.sin(h), ranges);
+          logWeight[i] = lw;
+          max = addLog(s, i, lw, max);
+        }
+        chunkMax[from / CHUNK_SIZE] = max;
+      }
+    });
+    if (metrics != null) metrics.record(FilterMetrics.CALCULATE_WEIGHTS, System.nanoTime() - start);
+  }
+
+  /**
+   * Start a sensor update of the log weights: remember the total weight
+   * before it, and return the offset of the current log weights, which
+   * the update subtracts so they stay near 0
+   */
+  private float beginLogUpdate()
+  {
+    totalBefore = getStatistics().getWeight();
+    indexValid = false;
+    return (logOffset > Double.NEGATIVE_INFINITY) ? (float) logOffset : 0;
+  }
+
+  /**
+   * Add particle i with log weight lw to the statistics of a chunk, which
+   * weigh the particles relative to max, the highest log weight of the
+   * chunk so far. Return the new highest log weight.
+   */
+  private float addLog(PoseStatistics s, int i, float lw, float max)
+  {
+    if (lw > max)
+    {
+      if (max > Float.NEGATIVE_INFINITY) s.scale(Math.exp(max - lw));
+      max = lw;
+    }
+    s.add(x[i], y[i], heading[i], (lw > Float.NEGATIVE_INFINITY) ? (float) Math.exp(lw - max) : 0);
+    return max;
+  }
+
+  /**
+   * Run a sensor update op, which leaves the highest log weight of each
+   * chunk in chunkMax, and merge the statistics of the chunks relative to
+   * the new offset of the log weights
+   */
+  private void forEachLogChunk(ChunkOp op)
+  {
+    int chunks = runChunks(op);
+    float max = Float.NEGATIVE_INFINITY;
+    for (int c = 0; c < chunks; c++) max = Math.max(max, chunkMax[c]);
+    // Keep the weights as they are unless they would underflow
+    logOffset = (max > 0 || max < -LOG_RANGE) ? max : 0;
+    stats.reset();
+    for (int c = 0; c < chunks; c++)
     {
-      particles[i].calculateWeight(lightValue, map);
+      if (chunkMax[c] > Float.NEGATIVE_INFINITY) chunkStats[c].scale(Math.exp(chunkMax[c] - logOffset));
+      stats.merge(chunkStats[c]);
     }
+    statsValid = stats.getWeight() > 0;
+    weightsValid = false;
+    logLikelihood = (totalBefore > 0)
+        ? Math.log(stats.getWeight()) + logOffset - Math.log(totalBefore) : Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Return the weight of particle i, computing it from the log weight if
+   * the log weights changed since the weights were last computed. Set
+   * weightsValid after a pass over all particles.
+   */
+  private float weightOf(int i)
+  {
+    if (weightsValid) return weight[i];
+    float lw = logWeight[i];
+    float w = (lw > Float.NEGATIVE_INFINITY) ? (float) Math.exp(lw - logOffset) : 0;
+    weight[i] = w;
+    return w;
+  }
+
+  /**
+   * Compute the weights from the log weights, if they changed
+   */
+  private void updateWeights()
+  {
+    if (weightsValid) return;
+    forEachChunk(new ChunkOp() {
+      public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+      {
+        for (int i = from; i < to; i++)
+          s.add(x[i], y[i], heading[i], weightOf(i));
+      }
+    });
+    weightsValid = true;
+  }
+
+  /**
+   * Return the log of the likelihood of the last sensor update, the mean
+   * of the likelihoods of the particles weighed by their weights before
+   * it. It is low when the readings are unlikely from where the particles
+   * are, e.g. when the robot was moved.
+   */
+  public double getLogLikelihood()
+  {
+    return logLikelihood;
+  }
+
+  /**
+   * Set the measurement model of the light sensor. Without a model the
+   * weights of the original filter are used, see SensorModel.legacy.
+   *
+   * @param model the compiled sensor model, for the tile ids of the map
+   */
+  public void setSensorModel(SensorModel model)
+  {
+    if (model != null && model.getTileCount() != map.getTileCount())
+      throw new IllegalArgumentException(mismatch(model, map));
+    sensorModel = model;
+  }
+
+  private static String mismatch(SensorModel model, Map map)
+  {
+    return "The sensor model has " + model.getTileCount() + " tile ids but the map has "
+           + map.getTileCount() + "; compile a new model for the map";
+  }
+
+  private SensorModel getSensorModel(Map map)
+  {
+    if (sensorModel != null) return sensorModel;
+    if (legacyModel == null || legacyModel.getTileCount() != map.getTileCount())
+      legacyModel = SensorModel.legacy(map);
+    return legacyModel;
   }
 
   /**
    * Apply a move to each particle
    *
+   * The noise of a chunk is drawn first, into the resampling arrays, which
+   * are free between resamplings; the update itself is then a plain loop
+   * over the arrays with table lookups for the sine and cosine. Headings
+   * are kept continuous in [0, 360).
+   *
+   * With a motion model set, see setMotionModel, the move is applied
+   * with that model instead.
+   *
    * @param move the move to apply
    */
   public void applyMove(Move move) 
   {
-    for (int i = 0; i < numParticles; i++) 
+    if (motionModel != null)
+    {
+      motionModel.reset();
+      motionModel.add(move);
+      applyMotion(motionModel);
+      return;
+    }
+    long start = (metrics != null) ? System.nanoTime() : 0;
+    final float distance = move.getDistanceTraveled();
+    final float angle = move.getAngleTurned();
+    reseed();
+    forEachChunk(new ChunkOp() {
+      public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+      {
+        float[] noiseX = nextX, noiseY = nextY, noiseHeading = nextHeading;
+        if (distance != 0)
+        {
+          r.nextGaussians(noiseX, from, to);
+          r.nextGaussians(noiseY, from, to);
+        }
+        r.nextGaussians(noiseHeading, from, to);
+        float dNoise = distanceNoiseFactor, aNoise = angleNoiseFactor;
+
+        for (int i = from; i < to; i++)
+        {
+          float h = heading[i];
+          if (distance != 0)
+          {
+            float xm = distance * Trig.cos(h);
+            float ym = distance * Trig.sin(h);
+            x[i] += xm + dNoise * xm * noiseX[i];
+            y[i] += ym + dNoise * ym * noiseY[i];
+          }
+          heading[i] = Trig.normalize(h + angle + aNoise * noiseHeading[i]);
+          s.add(x[i], y[i], heading[i], weightOf(i));
+        }
+      }
+    });
+    weightsValid = true;
+    if (metrics != null) metrics.record(FilterMetrics.APPLY_MOVE, System.nanoTime() - start);
+  }
+
+  /**
+   * Apply the moves added to an odometry motion model to each particle in
+   * one pass, and reset the model
+   *
+   * @param model the model holding the composed moves
+   */
+  public void applyMotion(OdometryMotionModel model)
+  {
+    if (model.getMoves() == 0) return;
+    long start = (metrics != null) ? System.nanoTime() : 0;
+    final float rot1 = model.getRotation1(), trans = model.getTranslation(), rot2 = model.getRotation2();
+    final float sRot1 = model.getSigmaRotation1(), sTrans = model.getSigmaTranslation(),
+                sRot2 = model.getSigmaRotation2();
+    model.reset();
+    reseed();
+    forEachChunk(new ChunkOp() {
+      public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+      {
+        float[] noiseRot1 = nextX, noiseTrans = nextY, noiseRot2 = nextHeading;
+        r.nextGaussians(noiseRot1, from, to);
+        r.nextGaussians(noiseTrans, from, to);
+        r.nextGaussians(noiseRot2, from, to);
+
+        for (int i = from; i < to; i++)
+        {
+          float h = heading[i] + rot1 + sRot1 * noiseRot1[i];
+          float t = trans + sTrans * noiseTrans[i];
+          x[i] += t * Trig.cos(h);
+          y[i] += t * Trig.sin(h);
+          heading[i] = Trig.normalize(h + rot2 + sRot2 * noiseRot2[i]);
+          s.add(x[i], y[i], heading[i], weightOf(i));
+        }
+      }
+    });
+    weightsValid = true;
+    if (metrics != null) metrics.record(FilterMetrics.APPLY_MOVE, System.nanoTime() - start);
+  }
+
+  /**
+   * Set the motion model used by applyMove. Without a model a move is
+   * applied as in the original filter, with noise in proportion to the
+   * distance travelled and a fixed noise on the heading.
+   *
+   * @param model the motion model, or null
+   */
+  public void setMotionModel(OdometryMotionModel model)
+  {
+    motionModel = model;
+  }
+
+  /**
+   * Record the time of each phase and the resampling counters
+   *
+   * @param metrics the metrics to record into, or null to record nothing
+   */
+  public void setMetrics(FilterMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Give each chunk a new random stream for the next motion update
+   */
+  private void reseed()
+  {
+    for (int c = 0; c < chunkRand.length; c++) chunkRand[c].setSeed(seeds.nextLong());
+    indexValid = false;
+  }
+
+  /**
+   * Run the motion and sensor updates in parallel on a pool,
+   * or sequentially on the calling thread.
+   *
+   * @param pool the pool to use, or null to run sequentially
+   */
+  public void setParallel(ForkJoinPool pool)
+  {
+    this.pool = pool;
+  }
+
+  /**
+   * Run the motion and sensor updates in parallel on the common pool,
+   * or sequentially on the calling thread.
+   *
+   * @param parallel true to run in parallel
+   */
+  public void setParallel(boolean parallel)
+  {
+    setParallel(parallel ? ForkJoinPool.commonPool() : null);
+  }
+
+  /**
+   * The work done on one chunk of particles, from index from to index to
+   * (exclusive), with the random generator and the pose statistics of
+   * that chunk.
+   */
+  private interface ChunkOp
+  {
+    void run(int from, int to, ParticleRandom r, PoseStatistics s);
+  }
+
+  /**
+   * Run op on every chunk and merge the statistics of the chunks, in
+   * chunk order so the result does not depend on the scheduling
+   */
+  private void forEachChunk(ChunkOp op)
+  {
+    int chunks = runChunks(op);
+    stats.reset();
+    for (int c = 0; c < chunks; c++) stats.merge(chunkStats[c]);
+    statsValid = stats.getWeight() > 0;
+  }
+
+  /**
+   * Run op on every chunk, with the statistics of the chunks reset
+   *
+   * @return the number of chunks
+   */
+  private int runChunks(ChunkOp op)
+  {
+    int chunks = (numParticles + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    for (int c = 0; c < chunks; c++) chunkStats[c].reset();
+    if (pool == null || chunks < 2)
+    {
+      for (int c = 0; c < chunks; c++) runChunk(op, c);
+    }
+    else
+    {
+      pool.invoke(new ChunkTask(op, 0, chunks));
+    }
+    return chunks;
+  }
+
+  private void runChunk(ChunkOp op, int c)
+  {
+    int from = c * CHUNK_SIZE;
+    op.run(from, Math.min(from + CHUNK_SIZE, numParticles), chunkRand[c], chunkStats[c]);
+  }
+
+  /**
+   * Splits a range of chunks in halves until a single chunk is left.
+   */
+  private class ChunkTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final ChunkOp op;
+    private final int from, to;
+
+    ChunkTask(ChunkOp op, int from, int to)
+    {
+      this.op = op;
+      this.from = from;
+      this.to = to;
+    }
+
+    protected void compute()
     {
-      particles[i].applyMove(move, distanceNoiseFactor, angleNoiseFactor);
+      if (to - from == 1)
+      {
+        runChunk(op, from);
+      }
+      else
+      {
+        int mid = (from + to) >>> 1;
+        invokeAll(new ChunkTask(op, from, mid), new ChunkTask(op, mid, to));
+      }
     }
   }
   
@@ -193,9 +1046,10 @@ public class ParticleSet
    */
   public float getMaxWeight() 
   {
+    updateWeights();
     float wt = 0;
-    for (int i = 0; i < particles.length; i ++ ) 
-    	wt = Math.max(wt,particles[i].getWeight());
+    for (int i = 0; i < numParticles; i ++ )
+    	wt = Math.max(wt, weight[i]);
     return wt;
   }
 
@@ -234,70 +1088,73 @@ public class ParticleSet
   /**
    * Estimate pose from weighted average of the particles
    * Calculate statistics
+   *
+   * The statistics are normally collected by the updates themselves; this
+   * makes a full pass over the particles, weighing them equally if all
+   * weights are 0.
    */
   public void estimatePose()
   {
-    float totalWeights = 0;
-    float estimatedX = 0;
-    float estimatedY = 0;
-    float estimatedAngle = 0;
-    varX = 0;
-    varY = 0;
-    varH = 0;
-    minX = BIG_FLOAT;
-    minY = BIG_FLOAT;
-    maxX = -BIG_FLOAT;
-    maxY = -BIG_FLOAT;
+    long start = (metrics != null) ? System.nanoTime() : 0;
+    forEachChunk(new ChunkOp() {
+      public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+      {
+        for (int i = from; i < to; i++)
+          s.add(x[i], y[i], heading[i], weightOf(i));
+      }
+    });
+    weightsValid = true;
+    if (!statsValid)
+    {
+      forEachChunk(new ChunkOp() {
+        public void run(int from, int to, ParticleRandom r, PoseStatistics s)
+        {
+          for (int i = from; i < to; i++)
+            s.add(x[i], y[i], heading[i], 1);
+        }
+      });
+    }
+    if (metrics != null) metrics.record(FilterMetrics.ESTIMATE_POSE, System.nanoTime() - start);
+  }
 
-    for (int i = 0; i < numParticles; i++)
+  /**
+   * Returns the spatial index of the particles, rebuilt if the particles
+   * changed since it was last used. The cells are the tiles of the map
+   * unless set otherwise with ParticleIndex.setCellSize.
+   * @return the index of the current particles
+   */
+  public ParticleIndex getIndex()
+  {
+    if (index == null) index = new ParticleIndex(map.getWidth());
+    if (!indexValid)
     {
-      Pose p = particles[i].getPose();
-      float x = p.getX();
-      float y = p.getY();
-      //float weight = particles.getParticle(i).getWeight();
-      float weight = 1; // weight is historic at this point, as resample has been done
-      estimatedX += (x * weight);
-      varX += (x * x * weight);
-      estimatedY += (y * weight);
-      varY += (y * y * weight);
-      float head = p.getHeading();
-      estimatedAngle += (head * weight);
-      varH += (head * head * weight);
-      totalWeights += weight;
-
-      if (x < minX)  minX = x;
-
-      if (x > maxX)maxX = x;
-      if (y < minY)minY = y;
-      if (y > maxY)   maxY = y;
+      updateWeights();
+      index.build(x, y, heading, weight, numParticles);
+      indexValid = true;
     }
+    return index;
+  }
 
-    estimatedX /= totalWeights;
-    varX /= totalWeights;
-    varX -= (estimatedX * estimatedX);
-    estimatedY /= totalWeights;
-    varY /= totalWeights;
-    varY -= (estimatedY * estimatedY);
-    estimatedAngle /= totalWeights;
-    varH /= totalWeights;
-    varH -= (estimatedAngle * estimatedAngle);
-    
-    // Normalize angle
-    while (estimatedAngle > 180) estimatedAngle -= 360;
-    while (estimatedAngle < -180) estimatedAngle += 360;
-    
-    _x = estimatedX;
-    _y = estimatedY;
-    _heading = estimatedAngle;
+  /**
+   * Returns the most likely poses, when the particles form several
+   * clusters, see ParticleIndex.cluster
+   * @param k the largest number of hypotheses
+   * @return the pose statistics of the hypotheses, most likely first
+   */
+  public List<PoseStatistics> getHypotheses(int k)
+  {
+    return getIndex().cluster(k, 0.001);
   }
+
   /**
    * Returns the minimum rectangle enclosing all the particles
    * @return rectangle : the minimum rectangle enclosing all the particles
    */
   public Rectangle getErrorRect()
   {
-    return new Rectangle((int) minX, (int) minY,
-            (int) (maxX - minX), (int) (maxY - minY));
+    PoseStatistics s = getStatistics();
+    return new Rectangle((int) s.getMinX(), (int) s.getMinY(),
+            (int) (s.getMaxX() - s.getMinX()), (int) (s.getMaxY() - s.getMinY()));
   }
 
   /**
@@ -306,7 +1163,7 @@ public class ParticleSet
    */
   public float getMaxX()
   {
-    return maxX;
+    return getStatistics().getMaxX();
   }
 
   /**
@@ -315,7 +1172,7 @@ public class ParticleSet
    */
   public float getMinX()
   {
-    return minX;
+    return getStatistics().getMinX();
   }
 
   /**
@@ -324,7 +1181,7 @@ public class ParticleSet
    */
   public float getMaxY()
   {
-    return maxY;
+    return getStatistics().getMaxY();
   }
 
   /**
@@ -333,7 +1190,7 @@ public class ParticleSet
    */
   public float getMinY()
   {
-    return minY;
+    return getStatistics().getMinY();
   }
   
   /**
@@ -342,7 +1199,7 @@ public class ParticleSet
    */
   public float getSigmaX()
   {
-    return (float) Math.sqrt(varX);
+    return (float) Math.sqrt(getStatistics().getVarianceX());
   }
 
   /**
@@ -351,16 +1208,17 @@ public class ParticleSet
    */
   public float getSigmaY()
   {
-    return (float) Math.sqrt(varY);
+    return (float) Math.sqrt(getStatistics().getVarianceY());
   }
   
   /**
-   * Returns the standard deviation of the heading values in the particle set;
+   * Returns the circular standard deviation of the heading values in the
+   * particle set;
    * @return sigma heading
    */
   public float getSigmaHeading()
   {
-    return (float) Math.sqrt(varH);
+    return (float) getStatistics().getSigmaHeading();
   }
   
 }
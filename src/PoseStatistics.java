@@ -0,0 +1,247 @@
+
+/**
+ * Accumulates the weighted mean, covariance and bounding box of particle
+ * poses in one pass, so the statistics can be collected while the
+ * particles are updated anyway.
+ * 
+ * Positions are summed relative to the first position added (shifted
+ * sums in double), which avoids the cancellation of E[x^2] - E[x]^2.
+ * Partial statistics, e.g. of chunks of particles updated in parallel,
+ * are combined with the pairwise formulas of Chan et al.
+ * 
+ * Headings are circular: the mean heading is the direction of the mean of
+ * the unit vectors of the headings, so 359 and 1 average to 0, and the
+ * spread is the circular standard deviation sqrt(-2 ln R), where R is the
+ * length of that mean vector. The unit vectors are looked up with Trig.
+ *
+ * The sum of the squared weights is kept as well, for the effective
+ * sample size of the weights, see getEffectiveSize.
+ */
+public class PoseStatistics
+{
+  private boolean empty = true;
+  private double kx, ky;           // shift
+  private double sw, sww, sx, sy, sxx, syy, sxy, sc, ss;
+  private float minX, maxX, minY, maxY;
+
+  public PoseStatistics()
+  {
+    reset();
+  }
+
+  public void reset()
+  {
+    empty = true;
+    kx = ky = 0;
+    sw = sww = sx = sy = sxx = syy = sxy = sc = ss = 0;
+    minX = minY = Float.MAX_VALUE;
+    maxX = maxY = -Float.MAX_VALUE;
+  }
+
+  /**
+   * Add a pose with a weight
+   */
+  public void add(float x, float y, float heading, float w)
+  {
+    if (empty)
+    {
+      kx = x;
+      ky = y;
+      empty = false;
+    }
+    double dx = x - kx, dy = y - ky;
+    sw += w;
+    sww += (double) w * w;
+    sx += w * dx;
+    sy += w * dy;
+    sxx += w * dx * dx;
+    syy += w * dy * dy;
+    sxy += w * dx * dy;
+    sc += w * Trig.cos(heading);
+    ss += w * Trig.sin(heading);
+
+    if (x < minX) minX = x;
+    if (x > maxX) maxX = x;
+    if (y < minY) minY = y;
+    if (y > maxY) maxY = y;
+  }
+
+  /**
+   * Multiply the weights of all poses added by f, e.g. to weigh poses
+   * added with weights relative to different log weights alike
+   */
+  public void scale(double f)
+  {
+    sw *= f;
+    sww *= f * f;
+    sx *= f;
+    sy *= f;
+    sxx *= f;
+    syy *= f;
+    sxy *= f;
+    sc *= f;
+    ss *= f;
+  }
+
+  /**
+   * Add the poses of other statistics to these
+   */
+  public void merge(PoseStatistics o)
+  {
+    if (o.empty) return;
+    if (!(o.sw > 0))
+    {
+      // No weight to add, only the bounds
+      if (empty) { empty = false; kx = o.kx; ky = o.ky; }
+      mergeBounds(o);
+      return;
+    }
+    if (empty || !(sw > 0))
+    {
+      copyMoments(o);
+      mergeBounds(o);
+      return;
+    }
+
+    double w = sw + o.sw;
+    double mx = getMeanXd(), my = getMeanYd();
+    double dx = o.getMeanXd() - mx, dy = o.getMeanYd() - my;
+    double m2x = m2X() + o.m2X() + dx * dx * sw * o.sw / w;
+    double m2y = m2Y() + o.m2Y() + dy * dy * sw * o.sw / w;
+    double cxy = cXY() + o.cXY() + dx * dy * sw * o.sw / w;
+
+    kx = mx + dx * o.sw / w;
+    ky = my + dy * o.sw / w;
+    sx = sy = 0;
+    sxx = m2x;
+    syy = m2y;
+    sxy = cxy;
+    sw = w;
+    sww += o.sww;
+    sc += o.sc;
+    ss += o.ss;
+    mergeBounds(o);
+  }
+
+  private void copyMoments(PoseStatistics o)
+  {
+    empty = false;
+    kx = o.kx; ky = o.ky;
+    sw = o.sw; sww = o.sww; sx = o.sx; sy = o.sy; sxx = o.sxx; syy = o.syy; sxy = o.sxy;
+    sc = o.sc; ss = o.ss;
+  }
+
+  private void mergeBounds(PoseStatistics o)
+  {
+    minX = Math.min(minX, o.minX);
+    maxX = Math.max(maxX, o.maxX);
+    minY = Math.min(minY, o.minY);
+    maxY = Math.max(maxY, o.maxY);
+  }
+
+  private double getMeanXd()
+  {
+    return kx + sx / sw;
+  }
+
+  private double getMeanYd()
+  {
+    return ky + sy / sw;
+  }
+
+  private double m2X()
+  {
+    return Math.max(0, sxx - sx * sx / sw);
+  }
+
+  private double m2Y()
+  {
+    return Math.max(0, syy - sy * sy / sw);
+  }
+
+  private double cXY()
+  {
+    return sxy - sx * sy / sw;
+  }
+
+  /**
+   * Return the sum of the weights added
+   */
+  public double getWeight()
+  {
+    return sw;
+  }
+
+  /**
+   * Return the effective sample size of the weights added, (sum w)^2 /
+   * sum w^2: the number of poses added if all weights are equal, near 1
+   * if a single pose has nearly all the weight
+   */
+  public double getEffectiveSize()
+  {
+    return (sww > 0) ? sw * sw / sww : 0;
+  }
+
+  public float getMeanX()
+  {
+    return (float) getMeanXd();
+  }
+
+  public float getMeanY()
+  {
+    return (float) getMeanYd();
+  }
+
+  /**
+   * Return the circular mean of the headings, from -180 to 180 degrees
+   */
+  public float getMeanHeading()
+  {
+    return (float) Math.toDegrees(Math.atan2(ss, sc));
+  }
+
+  public double getVarianceX()
+  {
+    return m2X() / sw;
+  }
+
+  public double getVarianceY()
+  {
+    return m2Y() / sw;
+  }
+
+  public double getCovarianceXY()
+  {
+    return cXY() / sw;
+  }
+
+  /**
+   * Return the circular standard deviation of the headings, in degrees
+   */
+  public double getSigmaHeading()
+  {
+    double r = Math.hypot(sc, ss) / sw;
+    if (!(r > 1e-12)) return Double.POSITIVE_INFINITY;
+    return Math.toDegrees(Math.sqrt(Math.max(0, -2 * Math.log(Math.min(r, 1)))));
+  }
+
+  public float getMinX()
+  {
+    return minX;
+  }
+
+  public float getMaxX()
+  {
+    return maxX;
+  }
+
+  public float getMinY()
+  {
+    return minY;
+  }
+
+  public float getMaxY()
+  {
+    return maxY;
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * A measurement model for range sensors, e.g. ultrasonic sensors, with
+ * the likelihood field of a DistanceField. The end point of every beam is
+ * projected from the pose of a particle, and the likelihood of the beam is
+ * 
+ *   zHit * exp(-d^2 / (2 sigma^2)) + zRand / maxRange
+ * 
+ * where d is the distance from the end point to the nearest obstacle. The
+ * likelihood depends on d only, so it is tabulated at a quarter of the
+ * cell size of the field; a beam costs a few multiplications and two table
+ * loads instead of marching a ray through the tiles. Readings at the
+ * maximum range carry no information and are skipped, and end points
+ * outside the map only get the random part. The table is also kept in
+ * log space, so the likelihood of many beams can be summed as logs
+ * instead of multiplied into a float that underflows.
+ * 
+ * The sensors are taken to sit at the centre of the robot, each pointing
+ * at a fixed angle from the heading.
+ */
+public class RangeSensorModel
+{
+  private DistanceField field;
+  private float[] beamAngles, beamCos, beamSin;
+  private float maxRange, sigma;
+  private float zHit = 0.9f, zRand = 0.1f;
+  private float[] table, logTable;
+  private float invStep, floor, logFloor;
+
+  /**
+   * Create a model
+   * 
+   * @param field the distance field of the map
+   * @param beamAngles the angle of each beam from the heading, in degrees
+   * @param maxRange the maximum range of the sensors
+   * @param sigma the standard deviation of a reading
+   */
+  public RangeSensorModel(DistanceField field, float[] beamAngles, float maxRange, float sigma)
+  {
+    this.field = field;
+    this.beamAngles = beamAngles.clone();
+    this.maxRange = maxRange;
+    this.sigma = sigma;
+    beamCos = new float[beamAngles.length];
+    beamSin = new float[beamAngles.length];
+    for (int b = 0; b < beamAngles.length; b++)
+    {
+      beamCos[b] = (float) Math.cos(Math.toRadians(beamAngles[b]));
+      beamSin[b] = (float) Math.sin(Math.toRadians(beamAngles[b]));
+    }
+    compile();
+  }
+
+  /**
+   * Set the weights of the hit and the random part of the model
+   */
+  public void setMixture(float zHit, float zRand)
+  {
+    this.zHit = zHit;
+    this.zRand = zRand;
+    compile();
+  }
+
+  private void compile()
+  {
+    float step = field.getCellSize() / 4;
+    int n = (int) Math.ceil(4 * sigma / step) + 1;
+    table = new float[n];
+    logTable = new float[n];
+    invStep = 1 / step;
+    floor = zRand / maxRange;
+    logFloor = (float) Math.log(floor);
+    for (int k = 0; k < n; k++)
+    {
+      double d = k * step;
+      table[k] = (float) (zHit * Math.exp(-d * d / (2 * sigma * sigma))) + floor;
+      logTable[k] = (float) Math.log(table[k]);
+    }
+  }
+
+  /**
+   * Return the likelihood of the readings from a pose
+   * 
+   * @param x the x of the pose
+   * @param y the y of the pose
+   * @param cos the cosine of the heading
+   * @param sin the sine of the heading
+   * @param ranges the range read by each beam
+   */
+  public float likelihood(float x, float y, float cos, float sin, float[] ranges)
+  {
+    float p = 1;
+    for (int b = 0; b < beamCos.length; b++)
+    {
+      float z = ranges[b];
+      if (!(z < maxRange)) continue;
+      // The beam direction is the heading turned by the beam angle
+      float dx = cos * beamCos[b] - sin * beamSin[b];
+      float dy = sin * beamCos[b] + cos * beamSin[b];
+      p *= likelihood(field.getDistance(x + z * dx, y + z * dy));
+    }
+    return p;
+  }
+
+  /**
+   * Return the log likelihood of the readings from a pose, see likelihood.
+   * Without a random part it is negative infinity when a beam cannot end
+   * where it does.
+   */
+  public float logLikelihood(float x, float y, float cos, float sin, float[] ranges)
+  {
+    float p = 0;
+    for (int b = 0; b < beamCos.length; b++)
+    {
+      float z = ranges[b];
+      if (!(z < maxRange)) continue;
+      float dx = cos * beamCos[b] - sin * beamSin[b];
+      float dy = sin * beamCos[b] + cos * beamSin[b];
+      int k = (int) (field.getDistance(x + z * dx, y + z * dy) * invStep + 0.5f);
+      p += k < logTable.length ? logTable[k] : logFloor;
+    }
+    return p;
+  }
+
+  /**
+   * Return the likelihood of a beam end point at distance d from the
+   * nearest obstacle
+   */
+  public float likelihood(float d)
+  {
+    int k = (int) (d * invStep + 0.5f);
+    return k < table.length ? table[k] : floor;
+  }
+
+  public int getBeams()
+  {
+    return beamAngles.length;
+  }
+
+  public float[] getBeamAngles()
+  {
+    return beamAngles.clone();
+  }
+
+  public float getMaxRange()
+  {
+    return maxRange;
+  }
+}
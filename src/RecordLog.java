@@ -0,0 +1,111 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only log of the records received from a robot. The log is a
+ * header followed by fixed size records:
+ * 
+ *   int   magic    'MCLR'
+ *   int   version  2
+ *   records of
+ *     long  time      wall clock time received, ns since 1970
+ *     long  sender    SensorRecord.senderTime, ms of the sender clock or -1
+ *     byte  type
+ *     float distance
+ *     float angle
+ *     float light
+ * 
+ * all in big endian byte order. A log that was cut off in the middle of a
+ * record is truncated to the last whole record when it is appended to.
+ * Logs of version 1, without the sender time, can be replayed but not
+ * appended to. See ReplaySource for reading a log back.
+ */
+public class RecordLog
+{
+  public static final int MAGIC = 0x4d434c52; // "MCLR"
+  public static final int VERSION = 2;
+  public static final int HEADER_SIZE = 8;
+  public static final int RECORD_SIZE = 8 + 8 + 1 + 4 + 4 + 4;
+  static final int RECORD_SIZE_V1 = 8 + 1 + 4 + 4 + 4;
+
+  private static final int BUFFERED_RECORDS = 512;
+
+  private FileChannel channel;
+  private ByteBuffer buffer = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_SIZE);
+  private long epochOffset;
+
+  /**
+   * Open a log for appending, creating it if it does not exist
+   */
+  public RecordLog(File file) throws IOException
+  {
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    long size = channel.size();
+    if (size == 0)
+    {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      while (header.hasRemaining()) channel.write(header);
+    }
+    else
+    {
+      int version = checkHeader(channel, file);
+      if (version != VERSION)
+        throw new IOException(file + " has record log version " + version + ", cannot append to it");
+      long records = (size - HEADER_SIZE) / RECORD_SIZE;
+      channel.truncate(HEADER_SIZE + records * RECORD_SIZE);
+    }
+    channel.position(channel.size());
+    epochOffset = System.currentTimeMillis() * 1000000L - System.nanoTime();
+  }
+
+  /**
+   * Check the header of a log
+   * 
+   * @return the version of the log
+   */
+  static int checkHeader(FileChannel channel, File file) throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+    header.flip();
+    if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+      throw new IOException(file + " is not a record log");
+    int version = header.getInt();
+    if (version < 1 || version > VERSION)
+      throw new IOException(file + " has unsupported record log version " + version);
+    return version;
+  }
+
+  /**
+   * Append a record. Records are buffered; see flush.
+   * 
+   * @param r the record, with its timestamp from System.nanoTime()
+   */
+  public void write(SensorRecord r) throws IOException
+  {
+    buffer.putLong(epochOffset + r.timestamp).putLong(r.senderTime);
+    buffer.put((byte) r.type).putFloat(r.distance).putFloat(r.angle).putFloat(r.light);
+    if (!buffer.hasRemaining()) flush();
+  }
+
+  /**
+   * Write the buffered records to the file
+   */
+  public void flush() throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining()) channel.write(buffer);
+    buffer.clear();
+  }
+
+  public void close() throws IOException
+  {
+    flush();
+    channel.close();
+  }
+}
@@ -0,0 +1,16 @@
+
+import java.io.IOException;
+
+/**
+ * A source of move and light records, e.g. the NXT connection.
+ */
+public interface RecordSource
+{
+  /**
+   * Read the next record, blocking until it is available
+   * 
+   * @param r the record to fill in
+   * @return false at the end of the stream
+   */
+  boolean read(SensorRecord r) throws IOException;
+}
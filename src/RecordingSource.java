@@ -0,0 +1,51 @@
+
+import java.io.IOException;
+
+/**
+ * Passes the records of another source on and appends every one of them
+ * to a RecordLog. The log is flushed at the end of the stream, and at
+ * least once a second while records arrive. When the source fails the
+ * log is closed before the failure is passed on, so the records just
+ * before it are kept for a replay.
+ */
+public class RecordingSource implements RecordSource
+{
+  private static final long FLUSH_INTERVAL = 1000000000L; // ns
+
+  private RecordSource source;
+  private RecordLog log;
+  private long lastFlush = System.nanoTime();
+
+  public RecordingSource(RecordSource source, RecordLog log)
+  {
+    this.source = source;
+    this.log = log;
+  }
+
+  public boolean read(SensorRecord r) throws IOException
+  {
+    boolean more;
+    try {
+      more = source.read(r);
+    } catch (IOException | RuntimeException e) {
+      try {
+        log.close();
+      } catch (IOException closing) {
+        e.addSuppressed(closing);
+      }
+      throw e;
+    }
+    if (!more)
+    {
+      log.close();
+      return false;
+    }
+    log.write(r);
+    if (r.timestamp - lastFlush > FLUSH_INTERVAL)
+    {
+      log.flush();
+      lastFlush = r.timestamp;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,413 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import lejos.robotics.navigation.Pose;
+
+/**
+ * Renders the particle filter for RobotGUI without holding up the filter.
+ * 
+ * The filter thread calls publish, which at most at the frame rate copies
+ * the particle positions, the pose estimate and the vertices of the route
+ * not drawn yet into a snapshot and hands it over; publish never waits. A render thread
+ * turns the latest snapshot into a frame: the map layer is drawn once into
+ * an image, the particles are binned into a density heatmap, one bin per
+ * pixel, and the new segments of the route are added to a route layer.
+ * The event dispatch thread only draws the latest frame.
+ * 
+ * Snapshots and frames are handed over through AtomicReferences and
+ * recycled, so a snapshot that is replaced before it is rendered is just
+ * dropped, and no images or arrays are allocated per frame.
+ */
+public class RenderPipeline implements Runnable
+{
+    /** The particles, pose and route at one moment, owned by one thread at a time */
+    private static class Snapshot
+    {
+        float[] x = new float[0], y = new float[0], w = new float[0];
+        int n;
+        boolean weighted;
+        float poseX, poseY, poseHeading;
+        float[] routeX = new float[16], routeY = new float[16];
+        int routePoints, routeGeneration;
+        long routeFrom;     // the sequence number of the first route vertex
+        boolean routeEnd;
+        float endX, endY;
+    }
+
+    private final Map m;
+    private final int width, height;
+    private final float scale;
+    private final long frameNanos;
+    private final Component view;
+    private Thread thread;
+    private volatile boolean running, mapChanged = true;
+    private volatile FilterMetrics metrics;
+
+    private final AtomicReference<Snapshot> pending = new AtomicReference<Snapshot>();
+    private final AtomicReference<Snapshot> free = new AtomicReference<Snapshot>();
+    private final AtomicReference<BufferedImage> ready = new AtomicReference<BufferedImage>();
+    private final AtomicReference<BufferedImage> spare = new AtomicReference<BufferedImage>();
+
+    // Filter thread
+    private long lastPublish;
+    private TrajectoryStore routeStore;
+    private int routeGeneration;
+
+    // Render thread; how far the route layer is drawn is also read by publish
+    private BufferedImage mapLayer, routeLayer, heatLayer;
+    private float[] density;
+    private volatile long routeDrawn;
+    private volatile int routeDrawnGeneration = -1;
+
+    // Event dispatch thread
+    private BufferedImage shown;
+
+    /**
+     * Create a pipeline
+     * 
+     * @param m the map
+     * @param scale the pixels per map unit
+     * @param maxFps the highest number of frames per second
+     * @param view the component to repaint when a frame is ready
+     */
+    public RenderPipeline(Map m, float scale, int maxFps, Component view)
+    {
+        this.m = m;
+        this.scale = scale;
+        this.view = view;
+        width = Math.max(1, (int) Math.ceil(m.getDimX() * m.getWidth() * scale));
+        height = Math.max(1, (int) Math.ceil(m.getDimY() * m.getWidth() * scale));
+        frameNanos = 1000000000L / maxFps;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public synchronized void start()
+    {
+        if (thread != null) return;
+        running = true;
+        thread = new Thread(this, "RenderPipeline");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop()
+    {
+        running = false;
+        if (thread != null) LockSupport.unpark(thread);
+        thread = null;
+    }
+
+    /**
+     * Record the time to render each frame
+     * 
+     * @param metrics the metrics to record into, or null
+     */
+    public void setMetrics(FilterMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Draw the map layer again at the next frame, after tiles changed
+     */
+    public void mapChanged()
+    {
+        mapChanged = true;
+    }
+
+    /**
+     * Hand the state of the filter to the render thread, unless a frame
+     * was published less than a frame time ago. Call from the filter
+     * thread; never waits.
+     * 
+     * @param set the particles
+     * @param route the route
+     * @param force publish even within a frame time, e.g. when the filter
+     *   goes idle and the state should be shown
+     */
+    public void publish(ParticleSet set, TrajectoryStore route, boolean force)
+    {
+        long now = System.nanoTime();
+        if (!force && now - lastPublish < frameNanos) return;
+        lastPublish = now;
+
+        Snapshot s = free.getAndSet(null);
+        if (s == null) s = new Snapshot();
+        int n = set.numParticles();
+        if (s.x.length < n)
+        {
+            s.x = new float[n];
+            s.y = new float[n];
+            s.w = new float[n];
+        }
+        s.n = set.copyParticles(s.x, s.y, s.w);
+        s.weighted = false;
+        for (int i = 0; i < s.n && !s.weighted; i++) s.weighted = s.w[i] > 0;
+        Pose p = set.getPose();
+        s.poseX = p.getX();
+        s.poseY = p.getY();
+        s.poseHeading = p.getHeading();
+
+        copyRoute(route, s);
+
+        Snapshot dropped = pending.getAndSet(s);
+        if (dropped != null) free.set(dropped);
+        Thread t = thread;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    /**
+     * Copy the vertices of the route the render thread has not drawn yet,
+     * from the last one it drew, and the end of the route. A snapshot that
+     * is dropped costs nothing, as the next one copies from the same place.
+     */
+    private void copyRoute(TrajectoryStore route, Snapshot s)
+    {
+        s.routePoints = 0;
+        s.routeEnd = false;
+        if (route == null || route.getCount() == 0) return;
+        if (route != routeStore)
+        {
+            routeStore = route;
+            routeGeneration++;
+        }
+        s.routeGeneration = routeGeneration;
+        // Read the generation first; the render thread writes it last
+        long drawn = (routeDrawnGeneration == routeGeneration) ? routeDrawn : 0;
+        long from = Math.max(route.getFirst(), drawn - 1);
+        int n = (int) (route.getCount() - from);
+        if (s.routeX.length < n)
+        {
+            s.routeX = new float[Math.max(n, 2 * s.routeX.length)];
+            s.routeY = new float[s.routeX.length];
+        }
+        for (int i = 0; i < n; i++)
+        {
+            s.routeX[i] = route.getX(from + i);
+            s.routeY[i] = route.getY(from + i);
+        }
+        s.routeFrom = from;
+        s.routePoints = n;
+        s.routeEnd = route.hasEnd();
+        s.endX = route.getEndX();
+        s.endY = route.getEndY();
+    }
+
+    /**
+     * Draw the latest frame; call from the event dispatch thread
+     */
+    public void paint(Graphics g, int x, int y)
+    {
+        BufferedImage frame = ready.getAndSet(null);
+        if (frame != null)
+        {
+            if (shown != null) spare.set(shown);
+            shown = frame;
+        }
+        if (shown != null) g.drawImage(shown, x, y, null);
+    }
+
+    public void run()
+    {
+        while (running)
+        {
+            Snapshot s = pending.getAndSet(null);
+            if (s == null)
+            {
+                LockSupport.park(this);
+                continue;
+            }
+            render(s);
+            free.set(s);
+        }
+    }
+
+    private void render(Snapshot s)
+    {
+        FilterMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        if (mapChanged || mapLayer == null)
+        {
+            mapChanged = false;
+            mapLayer = drawMap();
+        }
+        drawRoute(s);
+        drawDensity(s);
+
+        BufferedImage frame = spare.getAndSet(null);
+        if (frame == null) frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = frame.createGraphics();
+        g2.drawImage(mapLayer, 0, 0, null);
+        g2.drawImage(heatLayer, 0, 0, null);
+        g2.drawImage(routeLayer, 0, 0, null);
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        if (s.routeEnd && s.routePoints > 0)
+        { // From the last vertex to the end of the route, which still moves
+            g2.setColor(Color.BLUE);
+            g2.setStroke(routeStroke());
+            g2.drawLine(pixelX(s.routeX[s.routePoints - 1]), pixelY(s.routeY[s.routePoints - 1]),
+                        pixelX(s.endX), pixelY(s.endY));
+        }
+
+        // The pose estimate, with a line in the heading
+        int px = pixelX(s.poseX), py = pixelY(s.poseY);
+        double h = Math.toRadians(s.poseHeading);
+        g2.setColor(Color.RED);
+        g2.setStroke(new BasicStroke(2.0f));
+        g2.drawOval(px - 4, py - 4, 8, 8);
+        g2.drawLine(px, py, px + (int) Math.round(10 * Math.cos(h)), py - (int) Math.round(10 * Math.sin(h)));
+        g2.dispose();
+
+        BufferedImage dropped = ready.getAndSet(frame);
+        if (dropped != null) spare.set(dropped);
+        view.repaint();
+        if (m != null) m.record(FilterMetrics.RENDER, System.nanoTime() - start);
+    }
+
+    private BufferedImage drawMap()
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int[] rgb = new int[m.getTileCount()];
+        for (int t = 0; t < rgb.length; t++)
+        {
+            // Tiles as a light tint of their color, as the original transparent black
+            Color c = m.getTileColor(t);
+            int r = 255 - (255 - c.getRed()) / 8;
+            int gr = 255 - (255 - c.getGreen()) / 8;
+            int b = 255 - (255 - c.getBlue()) / 8;
+            rgb[t] = (r << 16) | (gr << 8) | b;
+        }
+        for (int py = 0; py < height; py++)
+        {
+            float my = (height - 1 - py + 0.5f) / scale;
+            for (int px = 0; px < width; px++)
+            {
+                int tile = m.getTile((px + 0.5f) / scale, my);
+                pixels[py * width + px] = (tile == Map.OUTSIDE) ? 0xffffff : rgb[tile];
+            }
+        }
+
+        // The tile grid, unless the tiles are too small to see it
+        float tile = m.getWidth() * scale;
+        if (tile >= 4)
+        {
+            Graphics2D g2 = image.createGraphics();
+            g2.setColor(Color.RED);
+            for (int i = 0; i <= m.getDimX(); i++)
+            {
+                int x = Math.min((int) (i * tile), width - 1);
+                g2.drawLine(x, 0, x, height - 1);
+            }
+            for (int j = 0; j <= m.getDimY(); j++)
+            {
+                int y = Math.min((int) (j * tile), height - 1);
+                g2.drawLine(0, height - 1 - y, width - 1, height - 1 - y);
+            }
+            g2.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * Add the new segments of the route to the route layer
+     */
+    private void drawRoute(Snapshot s)
+    {
+        if (routeLayer == null)
+            routeLayer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        if (s.routePoints == 0) return;
+        Graphics2D g2 = routeLayer.createGraphics();
+        long drawn = routeDrawn;
+        if (s.routeGeneration != routeDrawnGeneration)
+        {
+            g2.setComposite(java.awt.AlphaComposite.Clear);
+            g2.fillRect(0, 0, width, height);
+            g2.setComposite(java.awt.AlphaComposite.SrcOver);
+            drawn = 0;
+        }
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setColor(Color.BLUE);
+        g2.setStroke(routeStroke());
+        for (int i = 1; i < s.routePoints; i++)
+        {
+            if (s.routeFrom + i < drawn) continue;
+            g2.drawLine(pixelX(s.routeX[i - 1]), pixelY(s.routeY[i - 1]),
+                        pixelX(s.routeX[i]), pixelY(s.routeY[i]));
+        }
+        g2.dispose();
+        routeDrawn = s.routeFrom + s.routePoints;
+        routeDrawnGeneration = s.routeGeneration;
+    }
+
+    private BasicStroke routeStroke()
+    {
+        return new BasicStroke(Math.max(1.0f, 5.0f * scale), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    }
+
+    /**
+     * Bin the particle weights by pixel and color the bins from
+     * transparent through yellow to red, on a square root scale so
+     * sparse particles still show
+     */
+    private void drawDensity(Snapshot s)
+    {
+        if (heatLayer == null)
+        {
+            heatLayer = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            density = new float[width * height];
+        }
+        java.util.Arrays.fill(density, 0);
+        float max = 0;
+        for (int i = 0; i < s.n; i++)
+        {
+            int px = (int) (s.x[i] * scale), py = height - 1 - (int) (s.y[i] * scale);
+            if (px < 0 || px >= width || py < 0 || py >= height) continue;
+            int k = py * width + px;
+            float d = density[k] += s.weighted ? s.w[i] : 1;
+            if (d > max) max = d;
+        }
+
+        int[] pixels = ((DataBufferInt) heatLayer.getRaster().getDataBuffer()).getData();
+        float inv = (max > 0) ? 1 / max : 0;
+        for (int k = 0; k < pixels.length; k++)
+        {
+            float d = density[k];
+            if (d == 0)
+            {
+                pixels[k] = 0;
+                continue;
+            }
+            float v = (float) Math.sqrt(d * inv);
+            int alpha = 96 + (int) (159 * v);
+            int green = 255 - (int) (255 * v);
+            pixels[k] = (alpha << 24) | (255 << 16) | (green << 8);
+        }
+    }
+
+    private int pixelX(float x)
+    {
+        return (int) (x * scale);
+    }
+
+    private int pixelY(float y)
+    {
+        return height - 1 - (int) (y * scale);
+    }
+}
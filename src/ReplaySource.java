@@ -0,0 +1,99 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of a RecordLog back, e.g. to run the filter on a
+ * recorded trace. The log is memory mapped, a window of records at a time,
+ * and records are decoded straight from the mapping.
+ * 
+ * In real time the records are delivered with the spacing they were
+ * received with, scaled by a speed factor; otherwise as fast as they are
+ * read. The timestamp of a replayed record is the time it is delivered;
+ * its sender time is the one logged, -1 in a log of version 1.
+ */
+public class ReplaySource implements RecordSource
+{
+  private static final long WINDOW_SIZE = 64L << 20;
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private MappedByteBuffer window;
+  private long windowStart, end, windowSize;
+  private boolean hasSenderTime;
+  private double speed;
+  private long firstTime = -1, replayStart;
+
+  /**
+   * Open a log for replay
+   * 
+   * @param f the log file
+   * @param speed 1 for the original speed, 2 for twice as fast, and so on;
+   *        0 for as fast as possible
+   */
+  public ReplaySource(File f, double speed) throws IOException
+  {
+    file = new RandomAccessFile(f, "r");
+    channel = file.getChannel();
+    hasSenderTime = RecordLog.checkHeader(channel, f) > 1;
+    int recordSize = hasSenderTime ? RecordLog.RECORD_SIZE : RecordLog.RECORD_SIZE_V1;
+    long records = (channel.size() - RecordLog.HEADER_SIZE) / recordSize;
+    end = RecordLog.HEADER_SIZE + records * recordSize;
+    windowSize = WINDOW_SIZE / recordSize * recordSize;
+    windowStart = RecordLog.HEADER_SIZE;
+    this.speed = speed;
+    map();
+  }
+
+  private void map() throws IOException
+  {
+    long size = Math.min(windowSize, end - windowStart);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+  }
+
+  public boolean read(SensorRecord r) throws IOException
+  {
+    if (!window.hasRemaining())
+    {
+      windowStart += window.capacity();
+      if (windowStart >= end)
+      {
+        file.close();
+        return false;
+      }
+      map();
+    }
+
+    long time = window.getLong();
+    r.senderTime = hasSenderTime ? window.getLong() : -1;
+    r.type = window.get();
+    r.distance = window.getFloat();
+    r.angle = window.getFloat();
+    r.light = window.getFloat();
+
+    if (speed > 0)
+    {
+      if (firstTime < 0)
+      {
+        firstTime = time;
+        replayStart = System.nanoTime();
+      }
+      long due = replayStart + (long) ((time - firstTime) / speed);
+      long wait;
+      while ((wait = due - System.nanoTime()) > 0)
+      {
+        try {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Replay interrupted");
+        }
+      }
+    }
+    r.timestamp = System.nanoTime();
+    return true;
+  }
+}
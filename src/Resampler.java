@@ -0,0 +1,34 @@
+
+import java.util.Random;
+
+/**
+ * A strategy for picking the particles that survive a resampling step.
+ * 
+ * The strategy only selects parents; the particle set copies the selected
+ * particles itself. The cumulative weights are computed by the particle set
+ * in the same pass as the total weight, so a strategy can select all the
+ * parents in one linear pass.
+ */
+public interface Resampler
+{
+  /**
+   * Select the parents of the new particles.
+   * 
+   * @param weight the weights of the current particles
+   * @param cumulative cumulative[i] is the sum of weight[0] .. weight[i];
+   *        a strategy may overwrite it
+   * @param n the number of current particles
+   * @param parent receives the index of the parent of each new particle
+   * @param m the number of new particles
+   * @param rand the random source
+   * @return the number of parents selected; less than m if the strategy gave up
+   */
+  int resample(float[] weight, double[] cumulative, int n, int[] parent, int m, Random rand);
+
+  /**
+   * Return the number of passes over the particles used by the last call
+   * 
+   * @return the number of passes
+   */
+  int getIterations();
+}
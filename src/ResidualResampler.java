@@ -0,0 +1,54 @@
+
+import java.util.Random;
+
+/**
+ * Residual resampling. Particle i first gets floor(m * w_i / W) copies
+ * deterministically; the remaining parents are drawn systematically from
+ * the residual weights. The residual cumulative weights are written over
+ * the cumulative array in the same pass as the deterministic copies.
+ */
+public class ResidualResampler implements Resampler
+{
+  public int resample(float[] weight, double[] cumulative, int n, int[] parent, int m, Random rand)
+  {
+    double total = cumulative[n - 1];
+    if (!(total > 0)) return 0;
+
+    double scale = m / total;
+    double residual = 0;
+    int count = 0;
+    for (int i = 0; i < n; i++)
+    {
+      double expected = weight[i] * scale;
+      int copies = (int) expected;
+      for (int k = 0; k < copies && count < m; k++) parent[count++] = i;
+      residual += expected - copies;
+      cumulative[i] = residual;
+    }
+
+    int rest = m - count;
+    if (rest > 0)
+    {
+      if (!(residual > 0))
+      { // Rounding only; fill with the heaviest particles selected so far
+        for (int j = count; j < m; j++) parent[j] = parent[j % count];
+        return m;
+      }
+      double step = residual / rest;
+      double u = rand.nextDouble() * step;
+      int i = 0;
+      for (int j = count; j < m; j++)
+      {
+        while (i < n - 1 && cumulative[i] <= u) i++;
+        parent[j] = i;
+        u += step;
+      }
+    }
+    return m;
+  }
+
+  public int getIterations()
+  {
+    return 2;
+  }
+}
@@ -7,6 +7,11 @@
  */
 
 import java.awt.Color;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
 
 import lejos.robotics.navigation.Move;
 import lejos.robotics.navigation.Pose;
@@ -16,24 +21,47 @@ public class RobotMonitor
 {
 	private InputOutputStreams NXT;
 	private boolean USB = true;
+	private boolean framed = false; // the NXT sends FrameProtocol frames
 	
 	
-    private Map m = new Map(12, 1, 50);     
+    private Map m;
     private float lightVal;
-    private ParticleSet particles  = new ParticleSet(1000, m);
+    private ParticleSet particles;
     private Route route = new Route(0,25,0);
-    private RobotGUI view = new RobotGUI(particles, m);
+    private RobotGUI view;
     private Move move;
+    private SensorRecord record = new SensorRecord();
     private int pause = 1000; // ms between views
+    private FilterMetrics metrics; // null when not measuring
 
     public RobotMonitor()
     {
-        m.setColor(3, 0,  Color.BLACK);
-        m.setColor(5, 0,  Color.BLACK);
-        m.setColor(8, 0,  Color.BLACK);
+        this(defaultMap());
+    }
+    
+    public RobotMonitor(Map map)
+    {
+        this(map, true);
+    }
+    
+    /**
+     * @param connect false when the records come from somewhere else than
+     * the NXT, e.g. a ReplaySource
+     */
+    public RobotMonitor(Map map, boolean connect)
+    {
+        m = map;
+        particles = new ParticleSet(1000, m);
+        particles.setSensorModel(defaultSensorModel(m));
+        // The live loop resamples, which the original one did not; only
+        // when the effective sample size drops below half the particles
+        particles.setResampleThreshold(0.5f);
+        particles.setRecovery(0.001f, 0.1f);
+        view = new RobotGUI(particles, m);
    
         String m;
-    	view.update(route.getRoute());
+    	view.updateNow(route.getTrajectory());
+    	if ( !connect ) return;
     	NXT = new InputOutputStreams(USB);
         do {
         	m = NXT.open();
@@ -42,6 +70,43 @@ public class RobotMonitor
     	Delay.msDelay(pause);
     }
     
+    /**
+     * Return the 12x1 test track with black tiles at 3, 5 and 8
+     */
+    public static Map defaultMap()
+    {
+        Map m = new Map(12, 1, 50);
+        m.setColor(3, 0,  Color.BLACK);
+        m.setColor(5, 0,  Color.BLACK);
+        m.setColor(8, 0,  Color.BLACK);
+        return m;
+    }
+    
+    /**
+     * Return the light sensor model calibrated for the NXT: normal
+     * distributions around 400 on black, 600 on white and 500 on grey
+     */
+    public static SensorModel defaultSensorModel(Map m)
+    {
+        SensorModel model = new SensorModel(m, 8);
+        model.setGaussian(Color.BLACK, 400, 50);
+        model.setGaussian(Color.WHITE, 600, 50);
+        model.setGaussian(Color.GRAY,  500, 50);
+        model.setEdgeBlur(0.1f);
+        model.compile();
+        return model;
+    }
+    
+    /**
+     * Measure the filter, the reading of records and the rendering
+     */
+    public void setMetrics(FilterMetrics metrics)
+    {
+        this.metrics = metrics;
+        particles.setMetrics(metrics);
+        view.setMetrics(metrics);
+    }
+    
     public void printParticles()
     {
     	for ( int i=0; i < particles.numParticles(); i++)
@@ -57,17 +122,17 @@ public class RobotMonitor
     {
     	particles.applyMove(move);
     	route.update(move);
-    	view.update(route.getRoute()); 
+    	view.updateNow(route.getTrajectory()); 
     	Delay.msDelay(pause);
     }
     
     public void sensorUpdate(int lightValue)
     {
     	particles.calculateWeights(lightValue, m);
-    	view.update(route.getRoute()); 
+    	view.updateNow(route.getTrajectory()); 
     	Delay.msDelay(pause);
     	particles.resample();
-    	view.update(route.getRoute());
+    	view.updateNow(route.getTrajectory());
     	Delay.msDelay(pause);
     }
     
@@ -103,46 +168,143 @@ public class RobotMonitor
     	Pose p = particles.getPose();
 		System.out.println("Position "+p.getX()+" "+p.getY()+" "+p.getHeading());
 		System.out.println("Accuracy "+ particles.getSigmaX()+ " "+ particles.getSigmaY()+" "+particles.getSigmaHeading());
+		double total = particles.getIndex().getTotalWeight();
+		for (PoseStatistics h : particles.getHypotheses(3))
+			System.out.println("Hypothesis "+ h.getMeanX()+ " "+ h.getMeanY()+ " "+ h.getMeanHeading()+
+					" p="+ (float) (h.getWeight()/total));
     	
     }
     
     
-    private Move getMove()
+    private Move getMove(SensorPipeline pipeline) throws IOException
+    {
+    	if ( !pipeline.take(record) ) return null;
+    	lightVal = record.light;
+    	System.out.println("Move " + record.distance + " " + record.angle);
+    	return record.toMove();
+    }
+    
+    /**
+     * Read FrameProtocol frames from the NXT instead of plain records
+     */
+    public void setFramed(boolean framed)
+    {
+    	this.framed = framed;
+    }
+    
+    /**
+     * Spill the oldest vertices of the route to a file when they no longer
+     * fit in memory, see TrajectoryStore.setSpill
+     */
+    public void setRouteLog(File file) throws IOException
+    {
+    	route.getTrajectory().setSpill(file);
+    }
+    
+    public RecordSource getNXTSource()
     {
-    	Move m;
-    	int type = (int)NXT.input();
-    	float distance = NXT.input();
-    	float angle = NXT.input();
-    	lightVal = NXT.input();
-    	m = new Move( (type == 0)? Move.MoveType.TRAVEL : Move.MoveType.ROTATE , 
-    			distance, angle, false);
-    	System.out.println("Move " + distance + " " + angle);
-    	return m;
-    }
-    
-    public void go(){
+    	return framed ? new FramedRecordSource(NXT.getInputStream()) : new NXTRecordSource(NXT);
+    }
+    
+    public void go() throws IOException {
+    	go(getNXTSource());
+    }
+    
+    public void go(RecordSource source) throws IOException {
+    	
+    	// Read the source on its own thread so the link is read while the filter runs
+    	SensorPipeline pipeline = new SensorPipeline(source, 64);
+    	pipeline.setMetrics(metrics);
+    	pipeline.start();
     	
+    	boolean first = true;
     	while (true){
     		
-    		move = getMove();
-        	particles.applyMove(move);        	
+    		move = getMove(pipeline);
+    		if ( move == null ) break;
+    		if ( first )
+    		{
+    			// Start from the tiles that agree with the first reading
+    			particles.generateParticles((int)lightVal);
+    			first = false;
+    		}
+    		else
+    			particles.applyMove(move);
         	particles.calculateWeights((int)lightVal, m);
+        	particles.resample();
         	route.update(move);
-        	view.update(route.getRoute());
+        	// Frames are skipped while records queue up; show the last one
+        	if ( pipeline.getDepth() == 0 )
+        		view.updateNow(route.getTrajectory());
+        	else
+        		view.update(route.getTrajectory());
         	Pose p = route.getCurrentPose();
             System.out.println("Pose " + p.getX() + " " + p.getY() + " " + p.getHeading());
+            if ( pipeline.getDepth() > 0 )
+            	System.out.println("Queued " + pipeline.getDepth() + " coalesced " + pipeline.getCoalesced() 
+            			+ " reader waits " + pipeline.getProducerWaits());
     		
     		
     		
     	}
+    	route.getTrajectory().close();
+    	if ( route.getTrajectory().getSpillFailure() != null )
+    		System.out.println("Route log: " + route.getTrajectory().getSpillFailure());
     }
     
-    public static void main (String [] args)
+    /**
+     * Usage: java RobotMonitor [map-file] [--framed] [--record log-file]
+     *                           [--replay log-file [--fast]] [--metrics csv-file|-]
+     *                           [--route route-file]
+     * 
+     * The map file is made with MapFile or MapImporter. --record appends all
+     * records from the NXT to a RecordLog, --replay runs the filter on a
+     * recorded log instead of the NXT, at the original speed or --fast.
+     * --framed reads FrameProtocol frames from the NXT. --route spills the
+     * oldest part of the route to a file once it no longer fits in memory.
+     * --metrics measures the filter, registers the FilterMetrics with JMX
+     * and writes them as CSV every 10 seconds, to a file or to stdout.
+     */
+    public static void main (String [] args) throws IOException
     {
-    	RobotMonitor p = new RobotMonitor();
+    	Map map = null;
+    	File recordFile = null, replayFile = null, routeFile = null;
+    	String metricsFile = null;
+    	boolean fast = false, framed = false;
+    	for ( int i = 0; i < args.length; i++ )
+    	{
+    		if ( args[i].equals("--record") ) recordFile = new File(args[++i]);
+    		else if ( args[i].equals("--replay") ) replayFile = new File(args[++i]);
+    		else if ( args[i].equals("--fast") ) fast = true;
+    		else if ( args[i].equals("--framed") ) framed = true;
+    		else if ( args[i].equals("--route") ) routeFile = new File(args[++i]);
+    		else if ( args[i].equals("--metrics") ) metricsFile = args[++i];
+    		else map = MapFile.load(new File(args[i]));
+    	}
+    	
+    	RobotMonitor p = new RobotMonitor(( map != null ) ? map : defaultMap(), replayFile == null);
+    	p.setFramed(framed);
+    	if ( routeFile != null ) p.setRouteLog(routeFile);
+    	if ( metricsFile != null )
+    	{
+    		FilterMetrics metrics = new FilterMetrics();
+    		try {
+    			metrics.register("RobotMonitor");
+    		} catch (javax.management.JMException e) {
+    			System.out.println("JMX: " + e.getMessage());
+    		}
+    		PrintStream out = metricsFile.equals("-") ? System.out : 
+    				new PrintStream(new FileOutputStream(metricsFile, true), true);
+    		new MetricsReporter(metrics, out).start(10, TimeUnit.SECONDS);
+    		p.setMetrics(metrics);
+    	}
     	
     	//p.goSimulation();
-    	p.go();
+    	RecordSource source = ( replayFile != null ) ? 
+    			new ReplaySource(replayFile, fast ? 0 : 1) : p.getNXTSource();
+    	if ( recordFile != null )
+    		source = new RecordingSource(source, new RecordLog(recordFile));
+    	p.go(source);
 
      }
 }
\ No newline at end of file
@@ -0,0 +1,174 @@
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lejos.robotics.navigation.Pose;
+
+/**
+ * The localization of one robot in a LocalizationServer: its own particle
+ * set, with its own random seed, and a pipeline of records from the robot.
+ * 
+ * The session does not own a thread. When a record arrives the session
+ * schedules itself on the executor of the server, unless it is already
+ * scheduled, and then runs the filter on all the queued records. So a
+ * session runs on one thread at a time, and a bounded pool serves any
+ * number of robots.
+ */
+public class RobotSession
+{
+  private final String id;
+  private final Map map;
+  private final ParticleSet particles;
+  private final SensorPipeline pipeline;
+  private final Executor executor;
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final SensorRecord record = new SensorRecord();
+  private final LatencyHistogram updateLatency = new LatencyHistogram();
+  private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+  private volatile Pose pose;
+  private volatile Exception failure;
+
+  /**
+   * Create a session
+   * 
+   * @param source the source of records from the robot, read on a thread
+   *        of its own, or null if records are put with put()
+   */
+  RobotSession(String id, Map map, SensorModel model, int numParticles, long seed,
+               int queueCapacity, Executor executor, RecordSource source)
+  {
+    this.id = id;
+    this.map = map;
+    this.executor = executor;
+    particles = new ParticleSet(numParticles, map, seed);
+    particles.setSensorModel(model);
+    pipeline = new SensorPipeline(source, queueCapacity);
+    pipeline.setListener(new Runnable() {
+      public void run()
+      {
+        schedule();
+      }
+    });
+    if (source != null) pipeline.start();
+  }
+
+  private void schedule()
+  {
+    if (scheduled.compareAndSet(false, true))
+    {
+      executor.execute(new Runnable() {
+        public void run()
+        {
+          drain();
+        }
+      });
+    }
+  }
+
+  private void drain()
+  {
+    boolean owner = true;
+    try {
+      while (true)
+      {
+        while (pipeline.poll(record, 0, TimeUnit.NANOSECONDS)) update(record);
+        scheduled.set(false);
+        owner = false;
+        // A record put after the last poll, but before the flag was
+        // cleared, did not schedule the session; take it now
+        if (pipeline.getDepth() == 0 || !scheduled.compareAndSet(false, true)) return;
+        owner = true;
+      }
+    } catch (IOException | RuntimeException e) {
+      failure = e;
+    } finally {
+      // Else a failed update would leave the session scheduled for ever
+      if (owner) scheduled.set(false);
+    }
+  }
+
+  private void update(SensorRecord r)
+  {
+    long start = System.nanoTime();
+    particles.applyMove(r.toMove());
+    particles.calculateWeights((int) r.light, map);
+    particles.resample();
+    pose = particles.getPose();
+    long end = System.nanoTime();
+    updateLatency.record(end - start);
+    endToEndLatency.record(end - r.timestamp);
+  }
+
+  /**
+   * Measure the filter of this robot, e.g. with metrics registered with
+   * JMX under the id of the robot
+   */
+  public void setMetrics(FilterMetrics metrics)
+  {
+    particles.setMetrics(metrics);
+    pipeline.setMetrics(metrics);
+  }
+
+  /**
+   * Queue a record from the robot, waiting if the queue is full
+   */
+  public boolean put(SensorRecord r)
+  {
+    return pipeline.put(r);
+  }
+
+  /**
+   * Stop taking records from the robot
+   */
+  public void stop()
+  {
+    pipeline.stop();
+  }
+
+  public String getId()
+  {
+    return id;
+  }
+
+  /**
+   * Return the last estimated pose, or null before the first update
+   */
+  public Pose getPose()
+  {
+    return pose;
+  }
+
+  /**
+   * Return the last error, from reading from the robot or from an update
+   * of the filter, if any. The record of a failed update is dropped and
+   * the next record is taken as usual.
+   */
+  public Exception getFailure()
+  {
+    return failure;
+  }
+
+  /**
+   * Return the latencies of the filter updates, in ns
+   */
+  public LatencyHistogram getUpdateLatency()
+  {
+    return updateLatency;
+  }
+
+  /**
+   * Return the latencies from receiving a record until the filter has
+   * used it, including the time in the queue, in ns
+   */
+  public LatencyHistogram getEndToEndLatency()
+  {
+    return endToEndLatency;
+  }
+
+  public SensorPipeline getPipeline()
+  {
+    return pipeline;
+  }
+}
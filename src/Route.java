@@ -8,14 +8,18 @@ public class Route
 	// The route driven as seen from the robot
 	//hej
 
-    private ArrayList<Point> route = new ArrayList<Point>();
+	// Vertices kept in memory, and how far the stored route may be from the driven one
+	static final int CAPACITY = 4096;
+	static final float TOLERANCE = 0.5f;
+
+    private TrajectoryStore route = new TrajectoryStore(CAPACITY, TOLERANCE);
     private Pose currentPose = new Pose();
     private float x, y;
     
     public Route(float x, float y, float heading)
     {
         currentPose.setLocation(x, y); currentPose.setHeading(heading);
-        route.add(new Point(x,y));
+        route.add(x, y, System.currentTimeMillis());
     }
     
     private float normalize(float angle)
@@ -43,7 +47,7 @@ public class Route
     		x = currentPose.getX() + d * ((float) Math.cos(aRad));
     		y = currentPose.getY() + d * ((float) Math.sin(aRad));
     		currentPose.setLocation(x, y);
-    		route.add(new Point(x,y));
+    		route.add(x, y, System.currentTimeMillis());
     	}
     	else
     	{
@@ -52,7 +56,22 @@ public class Route
     	}
     }
     
+    /**
+     * Return a copy of the route in memory, simplified
+     */
     public ArrayList<Point> getRoute()
+    {
+    	TrajectoryStore.Window w = route.lastDistance(Double.MAX_VALUE, new TrajectoryStore.Window());
+    	ArrayList<Point> points = new ArrayList<Point>(w.n);
+    	for ( int i = 0; i < w.n; i++ )
+    		points.add(new Point(w.x[i], w.y[i]));
+    	return points;
+    }
+    
+    /**
+     * Return the store of the route, e.g. to spill it to a file
+     */
+    public TrajectoryStore getTrajectory()
     {
     	return route;
     }
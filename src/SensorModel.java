@@ -0,0 +1,263 @@
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+
+/**
+ * A calibrated measurement model for the downward light sensor.
+ * 
+ * For every tile id of a map the model holds a histogram of the light
+ * values the sensor reads over such a tile, either from calibration
+ * samples (addSample) or from a normal distribution (setGaussian). Grey
+ * tiles are just another tile id with their own histogram. Edge blurring
+ * accounts for the sensor seeing part of a neighbouring tile: a fraction
+ * of every histogram is replaced by the mix of all the histograms,
+ * weighted by how often each tile id occurs on the map.
+ * 
+ * compile() turns the histograms into a dense table of P(light | tile)
+ * with a row for every quantized light value. Within a row, entry 0 is
+ * the likelihood outside the map and entry t+1 the likelihood of tile t,
+ * so the weight of a particle is row[map.getTile(x, y) + 1]. Each row is
+ * scaled so the most likely tile has likelihood 1, which does not change
+ * the weights of the particles relative to each other. What the scale
+ * does change, the likelihood of the reading itself as used by the
+ * recovery of ParticleSet, is kept per row, see getRowScale. The same
+ * table is also compiled in log space.
+ */
+public class SensorModel
+{
+  /** The number of different raw light values */
+  public static final int MAX_LIGHT = 1024;
+  /** The log likelihood used for impossible readings */
+  public static final float LOG_ZERO = -1e4f;
+
+  private Map map;
+  private int tiles, binWidth, bins;
+  private double[][] counts;
+  private float edgeBlur = 0;
+  private float outside = 0;
+  private float[] table, logTable;
+  private double[] rowScale;
+
+  /**
+   * Create an empty model for the tiles of a map
+   * 
+   * @param m the map
+   * @param binWidth the number of raw light values per histogram bin
+   */
+  public SensorModel(Map m, int binWidth)
+  {
+    map = m;
+    tiles = m.getTileCount();
+    this.binWidth = binWidth;
+    bins = (MAX_LIGHT + binWidth - 1) / binWidth;
+    counts = new double[tiles][bins];
+  }
+
+  /**
+   * The model of the original filter: a reading below 500 has weight 0.9
+   * and a reading above 500 weight 0.1, and a particle outside the map
+   * weight 0.
+   * 
+   * @param m the map
+   * @return the model, compiled
+   */
+  public static SensorModel legacy(Map m)
+  {
+    SensorModel model = new SensorModel(m, 1);
+    int n = model.tiles + 1;
+    model.table = new float[model.bins * n];
+    for (int b = 0; b < model.bins; b++)
+      for (int t = 0; t < model.tiles; t++)
+        model.table[b * n + t + 1] = Particle.weight(m.getTileColor(t), b, Particle.BLACK_WHITE_THRESHOLD);
+    model.compileLog();
+    return model;
+  }
+
+  /**
+   * Add a calibration reading of the sensor over a tile
+   * 
+   * @param tile the tile id
+   * @param lightValue the light value read
+   */
+  public void addSample(int tile, int lightValue)
+  {
+    counts[tile][bin(lightValue)]++;
+  }
+
+  /**
+   * Add a calibration reading of the sensor over a tile color.
+   * Colors that are not on the map are ignored.
+   */
+  public void addSample(Color c, int lightValue)
+  {
+    int t = map.findTileId(c);
+    if (t != Map.OUTSIDE && t < tiles) addSample(t, lightValue);
+  }
+
+  /**
+   * Set the histogram of a tile color to a normal distribution.
+   * Colors that are not on the map are ignored.
+   * 
+   * @param c the tile color
+   * @param mean the mean light value over the color
+   * @param sigma the standard deviation of the light value
+   */
+  public void setGaussian(Color c, float mean, float sigma)
+  {
+    int t = map.findTileId(c);
+    if (t == Map.OUTSIDE || t >= tiles) return;
+    double[] h = counts[t];
+    for (int b = 0; b < bins; b++)
+    {
+      double d = ((b + 0.5) * binWidth - mean) / sigma;
+      h[b] = Math.exp(-0.5 * d * d);
+    }
+  }
+
+  /**
+   * Set the fraction of a reading that comes from neighbouring tiles
+   * 
+   * @param blur the fraction, from 0 to 1
+   */
+  public void setEdgeBlur(float blur)
+  {
+    edgeBlur = blur;
+  }
+
+  /**
+   * Set the likelihood of any reading outside the map, relative to the
+   * most likely tile
+   */
+  public void setOutsideLikelihood(float p)
+  {
+    outside = p;
+  }
+
+  /**
+   * Build the lookup tables from the histograms
+   */
+  public void compile()
+  {
+    // Normalize the histograms; a tile without samples reads anything
+    double[][] p = new double[tiles][bins];
+    for (int t = 0; t < tiles; t++)
+    {
+      double sum = 0;
+      for (int b = 0; b < bins; b++) sum += counts[t][b];
+      for (int b = 0; b < bins; b++)
+        p[t][b] = (sum > 0) ? (counts[t][b] + 1e-3 * sum / bins) / (sum * 1.001) : 1.0 / bins;
+    }
+
+    double[] freq = tileFrequencies();
+    int n = tiles + 1;
+    table = new float[bins * n];
+    rowScale = new double[bins];
+    for (int b = 0; b < bins; b++)
+    {
+      double mix = 0;
+      for (int t = 0; t < tiles; t++) mix += freq[t] * p[t][b];
+      double max = 0;
+      for (int t = 0; t < tiles; t++)
+      {
+        double v = (1 - edgeBlur) * p[t][b] + edgeBlur * mix;
+        table[b * n + t + 1] = (float) v;
+        max = Math.max(max, v);
+      }
+      for (int t = 0; t < tiles; t++) table[b * n + t + 1] /= max;
+      rowScale[b] = max;
+      table[b * n] = outside;
+    }
+    compileLog();
+  }
+
+  private void compileLog()
+  {
+    logTable = new float[table.length];
+    for (int i = 0; i < table.length; i++)
+      logTable[i] = (table[i] > 0) ? Math.max(LOG_ZERO, (float) Math.log(table[i])) : LOG_ZERO;
+  }
+
+  private double[] tileFrequencies()
+  {
+    double[] freq = new double[tiles];
+    ByteBuffer b = map.getTiles();
+    int total = b.remaining();
+    while (b.hasRemaining())
+    {
+      int t = b.get() & 0xff;
+      if (t < tiles) freq[t]++;
+    }
+    for (int t = 0; t < tiles; t++) freq[t] /= total;
+    return freq;
+  }
+
+  private int bin(int lightValue)
+  {
+    return Math.min(Math.max(lightValue, 0), MAX_LIGHT - 1) / binWidth;
+  }
+
+  /**
+   * Return the number of tile ids of the model
+   */
+  public int getTileCount()
+  {
+    return tiles;
+  }
+
+  /**
+   * Return the table of likelihoods
+   * 
+   * @return the table; row(lightValue) + tile + 1 is the likelihood of tile
+   */
+  public float[] getTable()
+  {
+    return table;
+  }
+
+  /**
+   * Return the table of log likelihoods, laid out like getTable
+   */
+  public float[] getLogTable()
+  {
+    return logTable;
+  }
+
+  /**
+   * Return the factor a row of the table was divided by, so that
+   * getRowScale(row) * getTable()[row + tile + 1] is P(light | tile). It is
+   * 1 for the rows of the legacy model.
+   *
+   * @param row the offset of the row, see row
+   */
+  public double getRowScale(int row)
+  {
+    return (rowScale != null) ? rowScale[row / (tiles + 1)] : 1;
+  }
+
+  /**
+   * Return the offset of the row of a light value in the tables
+   * 
+   * @param lightValue the light value read
+   * @return the offset of the entry outside the map
+   */
+  public int row(int lightValue)
+  {
+    return bin(lightValue) * (tiles + 1);
+  }
+
+  /**
+   * Return P(lightValue | tile)
+   */
+  public float likelihood(int tile, int lightValue)
+  {
+    return table[row(lightValue) + tile + 1];
+  }
+
+  /**
+   * Return log P(lightValue | tile)
+   */
+  public float logLikelihood(int tile, int lightValue)
+  {
+    return logTable[row(lightValue) + tile + 1];
+  }
+}
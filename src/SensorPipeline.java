@@ -0,0 +1,305 @@
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decouples reading records from the NXT from running the filter.
+ * 
+ * A reader thread reads records from a RecordSource into a bounded ring
+ * buffer of preallocated records; the filter thread takes them out with
+ * take(). When the ring is full the reader waits (backpressure). When the
+ * filter falls behind, so more than the coalesce depth records are queued,
+ * take() merges consecutive moves of the same type into one move, so the
+ * filter catches up. A record is a travel followed by a turn, so moves
+ * are only merged where the sum is the same motion: when the moves so far
+ * did not turn, or the next one does not travel. The light readings of
+ * the merged records are discarded; the merged record has the light
+ * value of the last one.
+ * 
+ * There is one reader thread and one filter thread taking records.
+ */
+public class SensorPipeline
+{
+  private final RecordSource source;
+  private final SensorRecord[] ring;
+  private int head, count;
+  private int coalesceDepth;
+  private boolean closed;
+  private IOException failure;
+  private Thread reader;
+  private Runnable listener;
+  private volatile FilterMetrics metrics;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  // Metrics
+  private volatile long received, taken, coalesced, producerWaits, producerWaitNanos;
+  private volatile int maxDepth;
+
+  /**
+   * Create a pipeline
+   * 
+   * @param source the source of records
+   * @param capacity the size of the ring buffer
+   */
+  public SensorPipeline(RecordSource source, int capacity)
+  {
+    this.source = source;
+    ring = new SensorRecord[capacity];
+    for (int i = 0; i < capacity; i++) ring[i] = new SensorRecord();
+    coalesceDepth = Math.max(1, capacity / 4);
+  }
+
+  /**
+   * Set how many records must be queued before moves are coalesced
+   * 
+   * @param depth the queue depth, or Integer.MAX_VALUE to never coalesce
+   */
+  public void setCoalesceDepth(int depth)
+  {
+    coalesceDepth = depth;
+  }
+
+  /**
+   * Set a callback that is run on the putting thread, outside the lock,
+   * after every record put into the ring
+   */
+  public void setListener(Runnable listener)
+  {
+    this.listener = listener;
+  }
+
+  /**
+   * Record the time of each read from the source, which includes waiting
+   * for the robot, as the read phase
+   *
+   * @param metrics the metrics to record into, or null
+   */
+  public void setMetrics(FilterMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Start the reader thread. A pipeline can also be fed with put()
+   * instead, without a reader thread.
+   */
+  public void start()
+  {
+    reader = new Thread(new Runnable() {
+      public void run()
+      {
+        readLoop();
+      }
+    }, "SensorPipeline reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Stop the reader thread; records already queued can still be taken
+   */
+  public void stop()
+  {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (reader != null) reader.interrupt();
+  }
+
+  private void readLoop()
+  {
+    SensorRecord r = new SensorRecord();
+    try {
+      while (true)
+      {
+        FilterMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        if (!source.read(r)) break;
+        if (m != null) m.record(FilterMetrics.READ, System.nanoTime() - start);
+        if (!put(r)) return;
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+    stop();
+  }
+
+  /**
+   * Put a record in the ring, waiting while it is full
+   * 
+   * @param r the record, which is copied
+   * @return false if the pipeline is stopped
+   */
+  public boolean put(SensorRecord r)
+  {
+    lock.lock();
+    try {
+      if (count == ring.length)
+      {
+        producerWaits++;
+        long start = System.nanoTime();
+        while (count == ring.length && !closed) notFull.awaitUninterruptibly();
+        producerWaitNanos += System.nanoTime() - start;
+      }
+      if (closed) return false;
+      ring[(head + count) % ring.length].set(r);
+      count++;
+      received++;
+      if (count > maxDepth) maxDepth = count;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    if (listener != null) listener.run();
+    return true;
+  }
+
+  /**
+   * Take the next record, blocking until one is available
+   * 
+   * @param out the record to fill in
+   * @return false when the pipeline is stopped and empty
+   * @throws IOException if the reader failed
+   */
+  public boolean take(SensorRecord out) throws IOException
+  {
+    lock.lock();
+    try {
+      while (count == 0)
+      {
+        if (closed)
+        {
+          if (failure != null) throw failure;
+          return false;
+        }
+        notEmpty.awaitUninterruptibly();
+      }
+      out.set(removeHead());
+      while (count > coalesceDepth && ring[head].type == out.type
+             && (out.angle == 0 || ring[head].distance == 0))
+      {
+        SensorRecord next = removeHead();
+        out.distance += next.distance;
+        out.angle += next.angle;
+        out.light = next.light;
+        out.timestamp = next.timestamp;
+        out.senderTime = next.senderTime;
+        coalesced++;
+      }
+      taken++;
+      notFull.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take the next record, waiting at most timeout
+   * 
+   * @return false if no record arrived in time or the pipeline is stopped and empty
+   */
+  public boolean poll(SensorRecord out, long timeout, TimeUnit unit) throws IOException
+  {
+    lock.lock();
+    try {
+      long nanos = unit.toNanos(timeout);
+      while (count == 0 && !closed && nanos > 0)
+      {
+        try {
+          nanos = notEmpty.awaitNanos(nanos);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      if (count == 0)
+      {
+        if (closed && failure != null) throw failure;
+        return false;
+      }
+      return take(out);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private SensorRecord removeHead()
+  {
+    SensorRecord r = ring[head];
+    head = (head + 1) % ring.length;
+    count--;
+    return r;
+  }
+
+  /**
+   * Return the number of records queued
+   */
+  public int getDepth()
+  {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Return the largest number of records that have been queued
+   */
+  public int getMaxDepth()
+  {
+    return maxDepth;
+  }
+
+  /**
+   * Return the number of records read from the source
+   */
+  public long getReceived()
+  {
+    return received;
+  }
+
+  /**
+   * Return the number of records taken by the filter
+   */
+  public long getTaken()
+  {
+    return taken;
+  }
+
+  /**
+   * Return the number of records merged into the one before them
+   */
+  public long getCoalesced()
+  {
+    return coalesced;
+  }
+
+  /**
+   * Return how many times the reader had to wait for a full ring
+   */
+  public long getProducerWaits()
+  {
+    return producerWaits;
+  }
+
+  /**
+   * Return the total time the reader waited for a full ring, in ns
+   */
+  public long getProducerWaitNanos()
+  {
+    return producerWaitNanos;
+  }
+}
@@ -0,0 +1,41 @@
+
+import lejos.robotics.navigation.Move;
+
+/**
+ * One move of the robot followed by a light sensor reading, as sent by
+ * the NXT. Records are mutable so they can be reused by the readers and
+ * the ring buffer of SensorPipeline without allocation.
+ */
+public class SensorRecord
+{
+  public static final int TRAVEL = 0;
+  public static final int ROTATE = 1;
+
+  public int type;
+  public float distance;
+  public float angle;
+  public float light;
+  /** When the record was received, from System.nanoTime() */
+  public long timestamp;
+  /** When the record was sent, in ms of the sender clock; -1 if not known */
+  public long senderTime = -1;
+
+  public void set(SensorRecord r)
+  {
+    type = r.type;
+    distance = r.distance;
+    angle = r.angle;
+    light = r.light;
+    timestamp = r.timestamp;
+    senderTime = r.senderTime;
+  }
+
+  /**
+   * Return the move of the record
+   */
+  public Move toMove()
+  {
+    return new Move((type == TRAVEL) ? Move.MoveType.TRAVEL : Move.MoveType.ROTATE,
+                    distance, angle, false);
+  }
+}
@@ -0,0 +1,360 @@
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import lejos.robotics.navigation.Move;
+import lejos.robotics.navigation.Pose;
+
+/**
+ * A headless simulation of the robot for testing the particle filter
+ * without a robot or a display.
+ * 
+ * The robot drives a ground truth trajectory on a map. For every move the
+ * simulator reports the move with odometry noise and a light value drawn
+ * around the light level of the tile under the true pose, and runs the
+ * particle filter on them as fast as it can. All random numbers come from
+ * one seed, so a trial can be repeated exactly. Each trial reports the
+ * steps per second of the filter and the error of the estimated pose.
+ * 
+ * Usage: java Simulator [trials [particles [seed [map-file]]]] [--parallel] [--odometry]
+ *                       [--ess fraction] [--recovery] [--kidnap step]
+ * 
+ * --odometry runs the filter with an OdometryMotionModel, --ess resamples
+ * only when the effective sample size falls below the fraction of the
+ * particles, see ParticleSet.setResampleThreshold, and --recovery turns
+ * on Augmented MCL, see ParticleSet.setRecovery. --kidnap moves the robot
+ * to another pose after the given step without telling the filter and
+ * reports how many steps it takes the filter to inject random particles
+ * and to find the robot again. On the
+ * default map the robot is put back at the start and drives the default
+ * trajectory again; on a map file it is put at a random pose.
+ */
+public class Simulator
+{
+  // Noise model
+  private float distanceNoise = 0.02f;  // fraction of the distance
+  private float angleNoise = 1f;        // degrees
+  private float lightNoise = 30f;       // standard deviation of the light value
+  private float[] lightLevel;           // mean light value of each tile id
+
+  private Map map;
+  private SensorModel model;
+  private boolean parallel, odometry, recovery;
+  private float resampleThreshold = 1;
+
+  /**
+   * The result of one trial
+   */
+  public static class Result
+  {
+    public int steps;
+    public double stepsPerSecond;
+    /** Root mean square of the position error over all steps */
+    public double rmsError;
+    /** Position error and heading error (degrees) after the last step */
+    public double finalError, finalHeadingError;
+    /** The number of random particles injected by recovery */
+    public long randomParticles;
+    /** The steps after a kidnapping until random particles are injected, -1 if never */
+    public int injectionSteps = -1;
+    /** The steps after a kidnapping until the error is below a tile, -1 if never */
+    public int recoverySteps = -1;
+
+    public String toString()
+    {
+      return String.format("%d steps, %.0f steps/s, rms error %.2f, final error %.2f, heading error %.1f,"
+                           + " random particles %d, injection steps %d, recovery steps %d",
+                           steps, stepsPerSecond, rmsError, finalError, finalHeadingError,
+                           randomParticles, injectionSteps, recoverySteps);
+    }
+  }
+
+  /**
+   * Create a simulator on a map with the light levels of the NXT light
+   * sensor: black 400, grey 500, white 600
+   */
+  public Simulator(Map m)
+  {
+    map = m;
+    lightLevel = new float[m.getTileCount()];
+    for (int t = 0; t < lightLevel.length; t++)
+    {
+      Color c = m.getTileColor(t);
+      float grey = (c.getRed() * 299 + c.getGreen() * 587 + c.getBlue() * 114) / 1000f;
+      lightLevel[t] = 400 + 200 * grey / 255;
+    }
+    model = new SensorModel(m, 8);
+    for (int t = 0; t < lightLevel.length; t++)
+      model.setGaussian(m.getTileColor(t), lightLevel[t], lightNoise);
+    model.compile();
+  }
+
+  public void setParallel(boolean parallel)
+  {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Use the odometry motion model instead of the original one
+   */
+  public void setOdometry(boolean odometry)
+  {
+    this.odometry = odometry;
+  }
+
+  /**
+   * Replace particles with random ones when the light readings become
+   * unlikely, with the rates of RobotMonitor
+   */
+  public void setRecovery(boolean recovery)
+  {
+    this.recovery = recovery;
+  }
+
+  /**
+   * Resample only when the effective sample size is below threshold times
+   * the number of particles
+   */
+  public void setResampleThreshold(float threshold)
+  {
+    resampleThreshold = threshold;
+  }
+
+  /**
+   * Run the filter along a trajectory
+   * 
+   * @param start the true start pose
+   * @param moves the true moves
+   * @param particles the number of particles
+   * @param seed the seed of all random numbers
+   * @return the result
+   */
+  public Result run(Pose start, List<Move> moves, int particles, long seed)
+  {
+    return run(start, moves, -1, null, particles, seed);
+  }
+
+  /**
+   * Run the filter along a trajectory, kidnapping the robot on the way
+   * 
+   * @param kidnapStep the number of moves before the robot is moved, -1
+   *        for never
+   * @param kidnapPose where the robot is moved to; the moves after the
+   *        kidnapping start from there
+   */
+  public Result run(Pose start, List<Move> moves, int kidnapStep, Pose kidnapPose,
+                    int particles, long seed)
+  {
+    Random rand = new Random(seed);
+    ParticleSet set = new ParticleSet(particles, map, rand.nextLong());
+    set.setSensorModel(model);
+    set.setParallel(parallel);
+    if (odometry) set.setMotionModel(new OdometryMotionModel());
+    set.setResampleThreshold(resampleThreshold);
+    if (recovery) set.setRecovery(0.001f, 0.1f);
+
+    float x = start.getX(), y = start.getY(), heading = start.getHeading();
+    double squaredErrors = 0;
+    Result result = new Result();
+    long time = 0;
+
+    for (Move move : moves)
+    {
+      if (result.steps == kidnapStep)
+      {
+        x = kidnapPose.getX();
+        y = kidnapPose.getY();
+        heading = kidnapPose.getHeading();
+      }
+
+      // The true move
+      float d = move.getDistanceTraveled(), a = move.getAngleTurned();
+      double h = Math.toRadians(heading);
+      x += d * (float) Math.cos(h);
+      y += d * (float) Math.sin(h);
+      heading = normalize(heading + a);
+
+      // What the robot reports
+      Move odometry = new Move(move.getMoveType(),
+          (float) (d * (1 + distanceNoise * rand.nextGaussian())),
+          (float) (a + ((a != 0) ? angleNoise * rand.nextGaussian() : 0)), false);
+      int tile = map.getTile(x, y);
+      int light = (int) Math.round(((tile == Map.OUTSIDE) ? 0 : lightLevel[tile])
+                                   + lightNoise * rand.nextGaussian());
+
+      long t0 = System.nanoTime();
+      set.applyMove(odometry);
+      set.calculateWeights(light, map);
+      double random = set.getRandomFraction();
+      set.resample();
+      Pose p = set.getPose();
+      time += System.nanoTime() - t0;
+      long injected = set.wasResampled() ? Math.round(random * particles) : 0;
+      result.randomParticles += injected;
+      if (kidnapStep >= 0 && result.steps >= kidnapStep && result.injectionSteps < 0 && injected > 0)
+        result.injectionSteps = result.steps - kidnapStep;
+
+      double error = Math.hypot(p.getX() - x, p.getY() - y);
+      squaredErrors += error * error;
+      if (kidnapStep >= 0 && result.steps >= kidnapStep && result.recoverySteps < 0
+          && error < map.getWidth())
+        result.recoverySteps = result.steps - kidnapStep;
+      result.steps++;
+      result.finalError = error;
+      result.finalHeadingError = Math.abs(normalize(p.getHeading() - heading + 180) - 180);
+    }
+
+    result.rmsError = Math.sqrt(squaredErrors / Math.max(1, result.steps));
+    result.stepsPerSecond = result.steps / (time / 1e9);
+    return result;
+  }
+
+  private static float normalize(float angle)
+  {
+    angle %= 360;
+    return (angle < 0) ? angle + 360 : angle;
+  }
+
+  /**
+   * The trajectory of RobotMonitor.goSimulation: 314 cm along the x axis
+   */
+  public static List<Move> defaultTrajectory()
+  {
+    List<Move> moves = new ArrayList<Move>();
+    for (int i = 0; i < 16; i++) moves.add(new Move(Move.MoveType.TRAVEL, 9, 0, false));
+    for (int i = 0; i < 5; i++) moves.add(new Move(Move.MoveType.TRAVEL, 10, 0, false));
+    moves.add(new Move(Move.MoveType.TRAVEL, 100, 0, false));
+    moves.add(new Move(Move.MoveType.TRAVEL, 10, 0, false));
+    moves.add(new Move(Move.MoveType.TRAVEL, 10, 0, false));
+    return moves;
+  }
+
+  /**
+   * A random drive on a map: steps of a tenth of a tile, turning 90 degrees
+   * now and then and turning around before leaving the map
+   * 
+   * @param start the start pose
+   * @param steps the number of moves
+   * @param rand the random source
+   * @return the moves
+   */
+  public static List<Move> randomTrajectory(Map m, Pose start, int steps, Random rand)
+  {
+    List<Move> moves = new ArrayList<Move>();
+    float x = start.getX(), y = start.getY(), heading = start.getHeading();
+    float step = m.getWidth() / 10f;
+    while (moves.size() < steps)
+    {
+      double h = Math.toRadians(heading);
+      float nx = x + step * (float) Math.cos(h), ny = y + step * (float) Math.sin(h);
+      if (m.getTile(nx, ny) == Map.OUTSIDE || rand.nextInt(20) == 0)
+      {
+        float a = (m.getTile(nx, ny) == Map.OUTSIDE) ? 180 : (rand.nextBoolean() ? 90 : -90);
+        moves.add(new Move(Move.MoveType.ROTATE, 0, a, false));
+        heading = normalize(heading + a);
+      }
+      else
+      {
+        moves.add(new Move(Move.MoveType.TRAVEL, step, 0, false));
+        x = nx;
+        y = ny;
+      }
+    }
+    return moves;
+  }
+
+  /**
+   * A random pose on a map, with one of the headings ParticleSet
+   * generates, 0 and 180
+   */
+  private static Pose randomPose(Map m, Random rand)
+  {
+    return new Pose(rand.nextFloat() * m.getDimX() * m.getWidth(),
+                    rand.nextFloat() * m.getDimY() * m.getWidth(), 180 * rand.nextInt(2));
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    List<String> a = new ArrayList<String>();
+    boolean parallel = false, odometry = false, recovery = false;
+    float threshold = 1;
+    int kidnap = -1;
+    for (int i = 0; i < args.length; i++)
+      if (args[i].equals("--parallel")) parallel = true;
+      else if (args[i].equals("--odometry")) odometry = true;
+      else if (args[i].equals("--recovery")) recovery = true;
+      else if (args[i].equals("--ess")) threshold = Float.parseFloat(args[++i]);
+      else if (args[i].equals("--kidnap")) kidnap = Integer.parseInt(args[++i]);
+      else a.add(args[i]);
+    int trials = (a.size() > 0) ? Integer.parseInt(a.get(0)) : 10;
+    int particles = (a.size() > 1) ? Integer.parseInt(a.get(1)) : 1000;
+    long seed = (a.size() > 2) ? Long.parseLong(a.get(2)) : 1;
+
+    Map m = (a.size() > 3) ? MapFile.load(new File(a.get(3))) : RobotMonitor.defaultMap();
+
+    Simulator sim = new Simulator(m);
+    sim.setParallel(parallel);
+    sim.setOdometry(odometry);
+    sim.setResampleThreshold(threshold);
+    sim.setRecovery(recovery);
+    Random rand = new Random(seed);
+    double rms = 0, speed = 0;
+    int injecting = 0, injectionSteps = 0, recovered = 0, recoverySteps = 0;
+    for (int trial = 0; trial < trials; trial++)
+    {
+      Pose start, to = null;
+      List<Move> moves;
+      if (a.size() > 3)
+      {
+        start = randomPose(m, rand);
+        if (kidnap >= 0)
+        {
+          moves = randomTrajectory(m, start, kidnap, rand);
+          to = randomPose(m, rand);
+          moves.addAll(randomTrajectory(m, to, 200 - kidnap, rand));
+        }
+        else
+          moves = randomTrajectory(m, start, 200, rand);
+      }
+      else
+      {
+        start = new Pose(0, 25, 0);
+        moves = defaultTrajectory();
+        if (kidnap >= 0)
+        {
+          // Back to the start, to drive the whole trajectory again
+          moves = new ArrayList<Move>(moves.subList(0, Math.min(kidnap, moves.size())));
+          moves.addAll(defaultTrajectory());
+          to = start;
+        }
+      }
+      Result r = sim.run(start, moves, kidnap, to, particles, rand.nextLong());
+      System.out.println("Trial " + trial + ": " + r);
+      rms += r.rmsError;
+      speed += r.stepsPerSecond;
+      if (r.injectionSteps >= 0)
+      {
+        injecting++;
+        injectionSteps += r.injectionSteps;
+      }
+      if (r.recoverySteps >= 0)
+      {
+        recovered++;
+        recoverySteps += r.recoverySteps;
+      }
+    }
+    System.out.println(String.format("Mean over %d trials: %.0f steps/s, rms error %.2f",
+                                     trials, speed / trials, rms / trials));
+    if (kidnap >= 0)
+    {
+      System.out.println(String.format("Injected random particles in %d trials, %.1f steps after the kidnapping on average",
+                                       injecting, injectionSteps / (double) Math.max(1, injecting)));
+      System.out.println(String.format("Found again in %d trials, after %.1f steps on average",
+                                       recovered, recoverySteps / (double) Math.max(1, recovered)));
+    }
+  }
+}
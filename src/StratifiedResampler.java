@@ -0,0 +1,31 @@
+
+import java.util.Random;
+
+/**
+ * Stratified resampling. The total weight is split into m equal strata and
+ * one pointer is drawn uniformly within each stratum. As the pointers are
+ * increasing the selection is a single O(n + m) pass.
+ */
+public class StratifiedResampler implements Resampler
+{
+  public int resample(float[] weight, double[] cumulative, int n, int[] parent, int m, Random rand)
+  {
+    double total = cumulative[n - 1];
+    if (!(total > 0)) return 0;
+
+    double step = total / m;
+    int i = 0;
+    for (int j = 0; j < m; j++)
+    {
+      double u = (j + rand.nextDouble()) * step;
+      while (i < n - 1 && cumulative[i] <= u) i++;
+      parent[j] = i;
+    }
+    return m;
+  }
+
+  public int getIterations()
+  {
+    return 1;
+  }
+}
@@ -0,0 +1,33 @@
+
+import java.util.Random;
+
+/**
+ * Low-variance (systematic) resampling. One random offset in [0, W/m) is
+ * drawn and the m pointers offset + j*W/m are walked through the cumulative
+ * weights together with the particle index, so the selection is a single
+ * O(n + m) pass.
+ */
+public class SystematicResampler implements Resampler
+{
+  public int resample(float[] weight, double[] cumulative, int n, int[] parent, int m, Random rand)
+  {
+    double total = cumulative[n - 1];
+    if (!(total > 0)) return 0;
+
+    double step = total / m;
+    double u = rand.nextDouble() * step;
+    int i = 0;
+    for (int j = 0; j < m; j++)
+    {
+      while (i < n - 1 && cumulative[i] <= u) i++;
+      parent[j] = i;
+      u += step;
+    }
+    return m;
+  }
+
+  public int getIterations()
+  {
+    return 1;
+  }
+}
@@ -0,0 +1,448 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A bounded store of the path driven by a robot, for robots that run for
+ * days.
+ * 
+ * The path is simplified as it is added: a point only becomes a vertex
+ * when the path since the last vertex no longer stays within tolerance of
+ * the straight line to the newest point (a sliding window Douglas-Peucker,
+ * with a window of at most MAX_PENDING points so adding stays cheap). The
+ * newest point is kept as the end of the path until the next vertex is made.
+ * 
+ * The vertices are kept in primitive ring buffers of a fixed capacity.
+ * When the ring is full the oldest vertex is dropped, or first spilled to
+ * a log file if one is set, see setSpill. Every vertex has a sequence
+ * number, counted from 0 for the first vertex ever, and the distance
+ * driven up to it, so windows of the path, the last so many units driven
+ * or a time range, are found by binary search. The spill log has fixed
+ * size records in time order, so time ranges reaching into it are also
+ * found by binary search, in the file. If writing the log fails the store
+ * goes on without it, see getSpillFailure.
+ * 
+ * The spill log is a header followed by the spilled vertices:
+ * 
+ *   int    magic    'MCLT'
+ *   int    version  1
+ *   records of
+ *     long   time
+ *     float  x, y
+ *     double distance driven
+ * 
+ * all in big endian byte order.
+ */
+public class TrajectoryStore
+{
+  public static final int MAGIC = 0x4d434c54; // "MCLT"
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 8;
+  public static final int RECORD_SIZE = 8 + 4 + 4 + 8;
+
+  private static final int MAX_PENDING = 64;
+  private static final int BUFFERED_RECORDS = 512;
+
+  /**
+   * A window of the path; the arrays grow as needed and can be reused
+   */
+  public static class Window
+  {
+    public float[] x = new float[16], y = new float[16];
+    public long[] time = new long[16];
+    public int n;
+
+    void clear()
+    {
+      n = 0;
+    }
+
+    void add(float px, float py, long t)
+    {
+      if (n == x.length)
+      {
+        x = java.util.Arrays.copyOf(x, 2 * n);
+        y = java.util.Arrays.copyOf(y, 2 * n);
+        time = java.util.Arrays.copyOf(time, 2 * n);
+      }
+      x[n] = px;
+      y[n] = py;
+      time[n++] = t;
+    }
+  }
+
+  private float tolerance;
+
+  // The ring of vertices; vertex number seq is at index seq % capacity
+  private final int capacity;
+  private final float[] x, y;
+  private final long[] time;
+  private final double[] odometer;
+  private long first, count;
+
+  // The points since the last vertex; the last one is the end of the path
+  private final float[] pendingX = new float[MAX_PENDING], pendingY = new float[MAX_PENDING];
+  private final long[] pendingTime = new long[MAX_PENDING];
+  private final double[] pendingOdometer = new double[MAX_PENDING];
+  private int pending;
+
+  // The spill log
+  private FileChannel spill;
+  private ByteBuffer spillBuffer;
+  private long spilled;
+  private IOException spillFailure;
+
+  /**
+   * Create a store
+   * 
+   * @param capacity the number of vertices kept in memory
+   * @param tolerance how far the path may be from its simplification
+   */
+  public TrajectoryStore(int capacity, float tolerance)
+  {
+    this.capacity = capacity;
+    this.tolerance = tolerance;
+    x = new float[capacity];
+    y = new float[capacity];
+    time = new long[capacity];
+    odometer = new double[capacity];
+  }
+
+  /**
+   * Spill the vertices dropped from memory to a log file, appending to it
+   * if it exists
+   */
+  public void setSpill(File file) throws IOException
+  {
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    long size = channel.size();
+    if (size == 0)
+    {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      while (header.hasRemaining()) channel.write(header);
+    }
+    else
+    {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+      header.flip();
+      if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+      {
+        channel.close();
+        throw new IOException(file + " is not a trajectory log");
+      }
+      // Cut off a torn record
+      channel.truncate(HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE);
+    }
+    channel.position(channel.size());
+    close();
+    spill = channel;
+    spillBuffer = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_SIZE);
+    spilled = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+  }
+
+  /**
+   * Add the newest point of the path
+   * 
+   * @param px the x of the point
+   * @param py the y of the point
+   * @param t the time of the point, e.g. System.currentTimeMillis()
+   */
+  public void add(float px, float py, long t)
+  {
+    if (count == 0 && pending == 0)
+    {
+      append(px, py, t, 0);
+      return;
+    }
+
+    double odo = endOdometer() + Math.hypot(px - getEndX(), py - getEndY());
+    if (pending > 0 && (pending == MAX_PENDING || !fits(px, py)))
+    {
+      // The end so far becomes a vertex
+      int last = pending - 1;
+      append(pendingX[last], pendingY[last], pendingTime[last], pendingOdometer[last]);
+      pending = 0;
+    }
+    pendingX[pending] = px;
+    pendingY[pending] = py;
+    pendingTime[pending] = t;
+    pendingOdometer[pending++] = odo;
+  }
+
+  /**
+   * Whether all pending points are within tolerance of the line from
+   * the last vertex to (px, py)
+   */
+  private boolean fits(float px, float py)
+  {
+    int v = index(count - 1);
+    float ax = x[v], ay = y[v];
+    float dx = px - ax, dy = py - ay;
+    float length = (float) Math.hypot(dx, dy);
+    for (int k = 0; k < pending; k++)
+    {
+      float qx = pendingX[k] - ax, qy = pendingY[k] - ay;
+      float d;
+      float along = (qx * dx + qy * dy) / Math.max(length * length, 1e-12f);
+      if (along <= 0)
+        d = (float) Math.hypot(qx, qy);
+      else if (along >= 1)
+        d = (float) Math.hypot(pendingX[k] - px, pendingY[k] - py);
+      else
+        d = Math.abs(qx * dy - qy * dx) / length;
+      if (d > tolerance) return false;
+    }
+    return true;
+  }
+
+  private void append(float px, float py, long t, double odo)
+  {
+    if (count - first == capacity)
+    {
+      if (spill != null) spill(index(first));
+      first++;
+    }
+    int i = index(count++);
+    x[i] = px;
+    y[i] = py;
+    time[i] = t;
+    odometer[i] = odo;
+  }
+
+  private void spill(int i)
+  {
+    try {
+      if (!spillBuffer.hasRemaining()) flush();
+      spillBuffer.putLong(time[i]).putFloat(x[i]).putFloat(y[i]).putDouble(odometer[i]);
+      spilled++;
+    } catch (IOException e) {
+      // Keep the robot going without the log
+      spillFailure = e;
+      try { spill.close(); } catch (IOException ignored) { }
+      spill = null;
+    }
+  }
+
+  /**
+   * Return why spilling stopped, or null
+   */
+  public IOException getSpillFailure()
+  {
+    return spillFailure;
+  }
+
+  /**
+   * Write the buffered spilled vertices to the log
+   */
+  public void flush() throws IOException
+  {
+    if (spill == null) return;
+    spillBuffer.flip();
+    while (spillBuffer.hasRemaining()) spill.write(spillBuffer);
+    spillBuffer.clear();
+  }
+
+  public void close() throws IOException
+  {
+    if (spill == null) return;
+    flush();
+    spill.close();
+    spill = null;
+  }
+
+  private int index(long seq)
+  {
+    return (int) (seq % capacity);
+  }
+
+  /**
+   * Return the sequence number after the newest vertex, which is the
+   * number of vertices ever made
+   */
+  public long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Return the sequence number of the oldest vertex in memory
+   */
+  public long getFirst()
+  {
+    return first;
+  }
+
+  /**
+   * Return the number of vertices in the spill log
+   */
+  public long getSpilled()
+  {
+    return spilled;
+  }
+
+  public float getX(long seq)
+  {
+    return x[index(seq)];
+  }
+
+  public float getY(long seq)
+  {
+    return y[index(seq)];
+  }
+
+  public long getTime(long seq)
+  {
+    return time[index(seq)];
+  }
+
+  /**
+   * Return the end of the path, the newest point added
+   */
+  public float getEndX()
+  {
+    return (pending > 0) ? pendingX[pending - 1] : x[index(count - 1)];
+  }
+
+  public float getEndY()
+  {
+    return (pending > 0) ? pendingY[pending - 1] : y[index(count - 1)];
+  }
+
+  public long getEndTime()
+  {
+    return (pending > 0) ? pendingTime[pending - 1] : time[index(count - 1)];
+  }
+
+  /**
+   * Return whether the end of the path is past the newest vertex
+   */
+  public boolean hasEnd()
+  {
+    return pending > 0;
+  }
+
+  /**
+   * Return the distance driven
+   */
+  public double getDistance()
+  {
+    return (count == 0) ? 0 : endOdometer();
+  }
+
+  private double endOdometer()
+  {
+    return (pending > 0) ? pendingOdometer[pending - 1] : odometer[index(count - 1)];
+  }
+
+  /**
+   * Return the path of the last distance driven, from the vertex before
+   * it to the end, as far as it is in memory
+   */
+  public Window lastDistance(double distance, Window out)
+  {
+    out.clear();
+    if (count == 0) return out;
+    double from = endOdometer() - distance;
+    long lo = first, hi = count - 1;
+    // The last vertex at or before from
+    while (lo < hi)
+    {
+      long mid = (lo + hi + 1) >>> 1;
+      if (odometer[index(mid)] <= from) lo = mid;
+      else hi = mid - 1;
+    }
+    addVertices(lo, count, out);
+    if (pending > 0) out.add(getEndX(), getEndY(), getEndTime());
+    return out;
+  }
+
+  /**
+   * Return the vertices with a time from from to to, inclusive, with the
+   * end of the path if it is in the range, reading the spill log for the
+   * part no longer in memory
+   * 
+   * @throws IOException if the spill log cannot be read, or was cut
+   *         short after it was set
+   */
+  public Window timeRange(long from, long to, Window out) throws IOException
+  {
+    out.clear();
+    if (spill != null && spilled > 0 && (count == first || from < time[index(first)]))
+      readSpilled(from, to, out);
+    if (count > first)
+    {
+      long lo = first, hi = count;
+      // The first vertex at or after from
+      while (lo < hi)
+      {
+        long mid = (lo + hi) >>> 1;
+        if (time[index(mid)] < from) lo = mid + 1;
+        else hi = mid;
+      }
+      long end = lo;
+      while (end < count && time[index(end)] <= to) end++;
+      addVertices(lo, end, out);
+    }
+    if (pending > 0 && getEndTime() >= from && getEndTime() <= to)
+      out.add(getEndX(), getEndY(), getEndTime());
+    return out;
+  }
+
+  private void addVertices(long from, long to, Window out)
+  {
+    for (long seq = from; seq < to; seq++)
+    {
+      int i = index(seq);
+      out.add(x[i], y[i], time[i]);
+    }
+  }
+
+  private void readSpilled(long from, long to, Window out) throws IOException
+  {
+    flush();
+    ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    long lo = 0, hi = spilled;
+    while (lo < hi)
+    {
+      long mid = (lo + hi) >>> 1;
+      if (readTime(mid, record) < from) lo = mid + 1;
+      else hi = mid;
+    }
+
+    ByteBuffer block = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_SIZE);
+    for (long k = lo; k < spilled; )
+    {
+      block.clear();
+      long position = HEADER_SIZE + k * RECORD_SIZE;
+      int bytes = (int) Math.min(block.capacity(), (spilled - k) * RECORD_SIZE);
+      block.limit(bytes);
+      while (block.hasRemaining() && spill.read(block, position + block.position()) > 0);
+      block.flip();
+      if (block.remaining() < RECORD_SIZE)
+        throw new IOException("The trajectory log is shorter than its " + spilled + " records");
+      while (block.remaining() >= RECORD_SIZE)
+      {
+        long t = block.getLong();
+        float px = block.getFloat(), py = block.getFloat();
+        block.getDouble();
+        if (t > to) return;
+        out.add(px, py, t);
+        k++;
+      }
+    }
+  }
+
+  private long readTime(long k, ByteBuffer record) throws IOException
+  {
+    record.clear();
+    long position = HEADER_SIZE + k * RECORD_SIZE;
+    while (record.hasRemaining() && spill.read(record, position + record.position()) > 0);
+    if (record.hasRemaining())
+      throw new IOException("The trajectory log is shorter than its " + spilled + " records");
+    return record.getLong(0);
+  }
+}
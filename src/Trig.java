@@ -0,0 +1,50 @@
+/**
+ * Sine and cosine of angles in degrees from a table, for the per particle
+ * loops of the filter. The table has 4096 steps per turn and is
+ * interpolated linearly, which is accurate to about 3e-7, well below
+ * float resolution of the positions.
+ */
+public class Trig
+{
+  private static final int SIZE = 4096;
+  private static final float SCALE = SIZE / 360f;
+  private static final float[] SIN = new float[SIZE + 1];
+
+  static
+  {
+    for (int i = 0; i <= SIZE; i++) SIN[i] = (float) Math.sin(2 * Math.PI * i / SIZE);
+  }
+
+  private Trig()
+  {
+  }
+
+  /**
+   * Return the sine of an angle in degrees
+   */
+  public static float sin(float degrees)
+  {
+    float t = degrees * SCALE;
+    int i = (int) Math.floor(t);
+    float f = t - i;
+    i &= SIZE - 1;
+    return SIN[i] + f * (SIN[i + 1] - SIN[i]);
+  }
+
+  /**
+   * Return the cosine of an angle in degrees
+   */
+  public static float cos(float degrees)
+  {
+    return sin(degrees + 90);
+  }
+
+  /**
+   * Return an angle in degrees normalized to [0, 360)
+   */
+  public static float normalize(float degrees)
+  {
+    float a = degrees - 360 * (float) Math.floor(degrees * (1 / 360f));
+    return (a >= 360) ? 0 : a;
+  }
+}